@@ -0,0 +1,16 @@
+/**
+ * The check that BytecodeRewriter adds to student code.
+ *
+ * Every StudentClassLoader defines its own copy of this class, so checking whether
+ * any program in that class loader has run out of time is a single volatile read.
+ * Only when the gate is open does the (slower) per-thread check in RunBudget run.
+ */
+public final class BudgetGate {
+  public static volatile boolean open;
+
+  public static void check() {
+    if (open) {
+      RunBudget.check();
+    }
+  }
+}
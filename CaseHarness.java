@@ -0,0 +1,246 @@
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Runs a student's program once for each test case inside one JVM, so the JVM only
+ * starts once per student instead of once per case (see JavaRunner.setCases()).
+ *
+ * Each case loads the student's classes with a new class loader, so static variables
+ * start over, and gets its own System.in, System.out and System.err. When a case
+ * finishes, a line with its number and status is added to the status file:
+ *   DONE    - main returned (and every thread it started finished)
+ *   TIMEOUT - the case ran out of time. The harness stops (its threads can't be stopped),
+ *             and the JavaRunner starts a new harness for the rest of the cases.
+ *   EXIT    - the program called System.exit, which also stops the harness
+ *   THREADS - the case finished, but its daemon threads didn't stop when interrupted.
+ *             The harness stops too, so they can't write into the next case's output.
+ *
+ * Usage: java CaseHarness timeout statusFile classpath "MainClass args" firstCase
+ *        (input output error)...
+ */
+public class CaseHarness
+{
+  // The case that is running, its streams and the status file (for the System.exit shutdown hook)
+  private static volatile int running = -1;
+  private static volatile PrintStream runningOut;
+  private static volatile PrintStream runningErr;
+  private static PrintStream status;
+
+  // How long a finished case's daemon threads have to stop once they are interrupted
+  private static final int DAEMON_GRACE = 100;
+
+  public static void main(String[] args) throws Exception
+  {
+    int timeout = Integer.parseInt(args[0]);
+    status = new PrintStream(new FileOutputStream(args[1], true), true);
+    URL[] classpath = classpathUrls(args[2]);
+    String[] command = args[3].trim().split("\\s+");
+    int first = Integer.parseInt(args[4]);
+
+    Runtime.getRuntime().addShutdownHook(new Thread(CaseHarness::exited));
+
+    for(int i = 5; i + 2 < args.length; i += 3)
+    {
+      int index = first + (i - 5) / 3;
+      String result = runCase(index, timeout, classpath, command, new File(args[i]), new File(args[i + 1]),
+          new File(args[i + 2]));
+      status.println(index + " " + result);
+      if(!"DONE".equals(result))
+      {
+        Runtime.getRuntime().halt(0);
+      }
+    }
+
+    running = -1;
+  }
+
+  /** Run one case
+   *  @return its status: DONE, TIMEOUT or THREADS (see the class comment)
+   */
+  private static String runCase(int index, int timeout, URL[] classpath, String[] command, File input, File output,
+      File error) throws IOException, InterruptedException
+  {
+    try(InputStream in = new BufferedInputStream(new FileInputStream(input));
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(output)), false,
+            encoding("stdout.encoding"));
+        PrintStream err = new PrintStream(new FileOutputStream(error), true, encoding("stderr.encoding"));
+        URLClassLoader loader = new URLClassLoader(classpath, ClassLoader.getPlatformClassLoader()))
+    {
+      System.setIn(in);
+      System.setOut(out);
+      System.setErr(err);
+      runningOut = out;
+      runningErr = err;
+      running = index;
+
+      // Threads the program starts join this group, so the case isn't done until they are
+      ThreadGroup group = new ThreadGroup("case-" + index);
+      Thread main = new Thread(group, () -> invokeMain(loader, command, err), "main");
+      main.setContextClassLoader(loader);
+      main.start();
+
+      String result = "TIMEOUT";
+      if(waitFor(group, main, timeout))
+      {
+        // the program is over, so like the java command exiting, nothing its daemon threads print counts
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        System.setOut(discard);
+        System.setErr(discard);
+        result = stopDaemons(group) ? "DONE" : "THREADS";
+      }
+      out.flush();
+      err.flush();
+      return result;
+    }
+  }
+
+  /** Interrupt the daemon threads a finished case left behind (the java command would end them when it exits)
+   *  @return false if some of them are still running after DAEMON_GRACE
+   */
+  private static boolean stopDaemons(ThreadGroup group) throws InterruptedException
+  {
+    group.interrupt();
+    long deadline = System.currentTimeMillis() + DAEMON_GRACE;
+    Thread[] threads = new Thread[group.activeCount() + 1];
+    int count = group.enumerate(threads);
+    for(int i = 0; i < count; i++)
+    {
+      threads[i].join(Math.max(1, deadline - System.currentTimeMillis()));
+      if(threads[i].isAlive())
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Wait for main to return and for the non-daemon threads it started to finish, like the JVM does
+   *  @return false if they didn't finish in time
+   */
+  private static boolean waitFor(ThreadGroup group, Thread main, int timeout) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + timeout;
+    Thread waitingFor = main;
+    while(null != waitingFor)
+    {
+      long left = deadline - System.currentTimeMillis();
+      if(timeout > 0 && left <= 0)
+      {
+        return false;
+      }
+      waitingFor.join(timeout > 0 ? left : 0);
+      if(waitingFor.isAlive())
+      {
+        continue;
+      }
+
+      waitingFor = null;
+      Thread[] threads = new Thread[group.activeCount() + 1];
+      int count = group.enumerate(threads);
+      for(int i = 0; i < count; i++)
+      {
+        if(!threads[i].isDaemon() && threads[i].isAlive())
+        {
+          waitingFor = threads[i];
+          break;
+        }
+      }
+    }
+    return true;
+  }
+
+  /** Load the main class and call its main method, reporting problems the same way the java command does */
+  private static void invokeMain(ClassLoader loader, String[] command, PrintStream err)
+  {
+    String mainClassName = command[0];
+    Method main;
+    try
+    {
+      Class<?> mainClass = Class.forName(mainClassName, false, loader);
+      main = mainClass.getMethod("main", String[].class);
+      if(!Modifier.isStatic(main.getModifiers()))
+      {
+        throw new NoSuchMethodException("main");
+      }
+      main.setAccessible(true);
+    }
+    catch(ClassNotFoundException | LinkageError e)
+    {
+      err.println("Error: Could not find or load main class " + mainClassName);
+      err.println("Caused by: " + e);
+      return;
+    }
+    catch(NoSuchMethodException e)
+    {
+      err.println("Error: Main method not found in class " + mainClassName
+          + ", please define the main method as:");
+      err.println("   public static void main(String[] args)");
+      return;
+    }
+
+    try
+    {
+      main.invoke(null, (Object)Arrays.copyOfRange(command, 1, command.length));
+    }
+    catch(InvocationTargetException e)
+    {
+      err.print("Exception in thread \"main\" ");
+      Throwable cause = e.getCause();
+
+      // remove the harness's frames (below the student's main method)
+      StackTraceElement[] trace = cause.getStackTrace();
+      for(int i = trace.length - 1; i >= 0; i--)
+      {
+        if(trace[i].getClassName().equals(mainClassName) && trace[i].getMethodName().equals("main"))
+        {
+          cause.setStackTrace(Arrays.copyOf(trace, i + 1));
+          break;
+        }
+      }
+      cause.printStackTrace(err);
+    }
+    catch(Throwable t)
+    {
+      err.print("Exception in thread \"main\" ");
+      t.printStackTrace(err);
+    }
+  }
+
+  /** Shutdown hook: the program called System.exit, so its case is over */
+  private static void exited()
+  {
+    int index = running;
+    if(index < 0)
+    {
+      return;
+    }
+    runningOut.flush();
+    runningErr.flush();
+    status.println(index + " EXIT");
+  }
+
+  private static URL[] classpathUrls(String classpath) throws IOException
+  {
+    List<URL> urls = new ArrayList<>();
+    for(String entry : classpath.split(File.pathSeparator))
+    {
+      if(!entry.isEmpty())
+      {
+        urls.add(new File(entry).toURI().toURL());
+      }
+    }
+    return urls.toArray(new URL[0]);
+  }
+
+  /** The encoding the JVM would use for System.out/err */
+  private static String encoding(String property)
+  {
+    return System.getProperty(property, Charset.defaultCharset().name());
+  }
+}
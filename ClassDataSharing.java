@@ -0,0 +1,293 @@
+import java.io.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Builds and caches a dynamic Class Data Sharing (AppCDS) archive for the jars
+ * shared by every student in a lab (junit, hamcrest, starter jars...).
+ *
+ * The archive is created once by a warm-up run with -XX:ArchiveClassesAtExit and
+ * then handed to each student JVM with -XX:SharedArchiveFile, so the JDK and test
+ * framework classes are mapped instead of being loaded and verified every launch.
+ *
+ * The warm-up run should load the classes student programs will: for JUnit, that means
+ * running some tests. Its main class can be in the jars, or be given as source code, which
+ * is run with the java command's source file mode. That way it isn't on the classpath
+ * (which must be the same when the archive is dumped and used), and since its classes are
+ * loaded from memory they aren't archived either.
+ *
+ * CDS won't archive classes compiled for Java 5 or older (class file version 49),
+ * which includes junit 4.13 and hamcrest 1.3. Jars with those classes are copied
+ * into the cache with the classes marked as version 50 (Java 6, the oldest version
+ * CDS takes, which still accepts the same bytecode), and the copies are used instead.
+ *
+ * What the warm-up run printed (including the classes it archived) is kept next to
+ * the archive. An archive without any of the jars' classes isn't used.
+ *
+ * Archives are named after a hash of the child JDK version and the contents of the
+ * shared jars, so a JDK upgrade or a changed jar produces a new archive.
+ */
+public class ClassDataSharing {
+  // The oldest class file version CDS archives (Java 6)
+  private static final int OLDEST_ARCHIVED_VERSION = 50;
+
+  // Changed when archives are made differently, so older archives in the cache aren't used
+  private static final String ARCHIVE_FORMAT = "java5-copies";
+
+  private File cacheDir;
+  private List<File> jars;
+  private List<String> classpath;
+  private String warmupMainClass;
+  private String warmupSource;
+  private List<String> jvmFlags;
+
+  /**
+   * @param cacheDir        Folder where archives are kept between runs
+   * @param jars            The shared jar files (in classpath order)
+   * @param warmupMainClass Class to run while dumping the archive
+   * @param warmupSource    The source of warmupMainClass, or null if it is in the shared jars
+   * @param jvmFlags        The flags student programs are launched with (see LaunchProfile)
+   */
+  public ClassDataSharing(File cacheDir, List<File> jars, String warmupMainClass, String warmupSource,
+      List<String> jvmFlags) {
+    this.cacheDir = cacheDir;
+    this.jars = jars;
+    this.warmupMainClass = warmupMainClass;
+    this.warmupSource = warmupSource;
+    this.jvmFlags = jvmFlags;
+    this.classpath = new ArrayList<>();
+    for (File jar : jars) {
+      classpath.add(jar.getAbsolutePath());
+    }
+  }
+
+  /**
+   * The classpath the archive was dumped with (after prepare(), some of these can be
+   * copies of the jars in the cache). Student JVMs must start their classpath with these entries.
+   */
+  public List<String> getClasspath() {
+    return classpath;
+  }
+
+  /**
+   * Find the cached archive for these jars, creating it if needed.
+   *
+   * @return the archive file, or null if the archive could not be created
+   */
+  public File prepare() {
+    try {
+      String name = "jem-" + fingerprint();
+      File archive = new File(cacheDir, name + ".jsa");
+      File log = new File(cacheDir, name + ".log");
+      cacheDir.mkdirs();
+      classpath = archivableJars(new File(cacheDir, name));
+
+      if (!archive.exists()) {
+        if (log.exists()) {
+          // this archive was already tried (see below), don't make every run wait for it again
+          System.err.println("Class Data Sharing: not used, the archive for these jars could not be created (see " + log
+              + ")");
+          return null;
+        }
+
+        int archived = dump(archive, log);
+        if (archived == 0) {
+          Files.deleteIfExists(archive.toPath());
+          System.err.println("Class Data Sharing: not used, none of the test folder jars' classes were archived (see "
+              + log + ")");
+          return null;
+        }
+        System.err.println("Class Data Sharing: archived " + archived + " classes from the test folder jars");
+      }
+      return archive.exists() ? archive : null;
+    } catch (Exception e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Run the warm-up program and write the classes it loaded to the specified archive
+   *
+   * @param log Where everything the warm-up run prints is written
+   * @return How many classes from the jars are in the archive
+   */
+  private int dump(File archive, File log) throws Exception {
+    // Dump to a temp file first so another grader never sees a half written archive
+    File partial = new File(cacheDir, archive.getName() + "." + System.nanoTime() + ".tmp");
+    File source = null;
+    if (null != warmupSource) {
+      source = new File(cacheDir, warmupMainClass + "." + System.nanoTime() + ".java");
+      Files.write(source.toPath(), warmupSource.getBytes("UTF-8"));
+    }
+
+    List<String> cmd = new ArrayList<>();
+    cmd.add("java");
+    cmd.addAll(jvmFlags);
+    cmd.add("-XX:ArchiveClassesAtExit=" + partial.getPath());
+    cmd.add("-Xlog:cds=warning,cds+class=debug"); // a "klasses[...]" line for each archived class
+    cmd.add("-cp");
+    cmd.add(String.join(File.pathSeparator, classpath));
+    cmd.add(null == source ? warmupMainClass : source.getPath());
+
+    ProcessBuilder builder = new ProcessBuilder(cmd);
+    builder.redirectErrorStream(true);
+    builder.redirectOutput(ProcessBuilder.Redirect.to(log));
+    try {
+      Process proc = builder.start();
+      proc.getOutputStream().close();
+      proc.waitFor();
+    } finally {
+      if (null != source) {
+        Files.deleteIfExists(source.toPath());
+      }
+    }
+
+    if (partial.exists()) {
+      try {
+        Files.move(partial.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        // another grader finished the same archive first
+        Files.deleteIfExists(partial.toPath());
+      }
+    }
+
+    // count the archived classes that came from the jars
+    Set<String> jarClasses = new HashSet<>();
+    for (String jar : classpath) {
+      try (JarFile file = new JarFile(jar)) {
+        for (JarEntry entry : Collections.list(file.entries())) {
+          if (entry.getName().endsWith(".class")) {
+            String className = entry.getName();
+            jarClasses.add(className.substring(0, className.length() - ".class".length()).replace('/', '.'));
+          }
+        }
+      }
+    }
+    int archived = 0;
+    for (String line : Files.readAllLines(log.toPath(), java.nio.charset.StandardCharsets.ISO_8859_1)) {
+      int space = line.indexOf("klasses[") < 0 ? -1 : line.lastIndexOf(' ');
+      if (space >= 0 && jarClasses.contains(line.substring(space + 1).trim())) {
+        archived++;
+      }
+    }
+    return archived;
+  }
+
+  /**
+   * The classpath to archive: each jar, or a copy of it in dir if it has classes that
+   * are too old for CDS (see the class comment). Signed jars are always used as they are.
+   */
+  private List<String> archivableJars(File dir) throws IOException {
+    List<String> archivable = new ArrayList<>();
+    for (File jar : jars) {
+      File copy = new File(dir, jar.getName());
+      if (!copy.exists() && needsNewerVersion(jar)) {
+        dir.mkdirs();
+        File partial = new File(dir, jar.getName() + "." + System.nanoTime() + ".tmp");
+        copyWithNewerVersion(jar, partial);
+        try {
+          Files.move(partial.toPath(), copy.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+          // another grader made the same copy first
+          Files.deleteIfExists(partial.toPath());
+        }
+      }
+      archivable.add((copy.exists() ? copy : jar).getAbsolutePath());
+    }
+    return archivable;
+  }
+
+  /** True if the jar has classes CDS won't archive, and can be changed (isn't signed) */
+  private static boolean needsNewerVersion(File jar) throws IOException {
+    boolean tooOld = false;
+    try (JarFile file = new JarFile(jar)) {
+      for (JarEntry entry : Collections.list(file.entries())) {
+        String name = entry.getName().toUpperCase();
+        if (name.startsWith("META-INF/") && (name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA")
+            || name.endsWith(".EC"))) {
+          return false;
+        }
+        if (!tooOld && entry.getName().endsWith(".class")) {
+          try (InputStream in = file.getInputStream(entry)) {
+            tooOld = isJava5(in.readNBytes(8));
+          }
+        }
+      }
+    }
+    return tooOld;
+  }
+
+  /** Copy a jar, marking its Java 5 classes as Java 6 classes */
+  private static void copyWithNewerVersion(File jar, File copy) throws IOException {
+    try (JarFile file = new JarFile(jar); JarOutputStream out = new JarOutputStream(new FileOutputStream(copy))) {
+      for (JarEntry entry : Collections.list(file.entries())) {
+        byte[] contents;
+        try (InputStream in = file.getInputStream(entry)) {
+          contents = in.readAllBytes();
+        }
+        if (entry.getName().endsWith(".class") && isJava5(contents)) {
+          contents[7] = (byte) OLDEST_ARCHIVED_VERSION;
+        }
+        out.putNextEntry(new JarEntry(entry.getName()));
+        out.write(contents);
+        out.closeEntry();
+      }
+    }
+  }
+
+  /** True if the bytes start a class file with major version 49 (Java 5) */
+  private static boolean isJava5(byte[] classFile) {
+    return classFile.length >= 8 && (classFile[0] & 0xff) == 0xca && (classFile[1] & 0xff) == 0xfe
+        && (classFile[2] & 0xff) == 0xba && (classFile[3] & 0xff) == 0xbe && classFile[6] == 0
+        && classFile[7] == OLDEST_ARCHIVED_VERSION - 1;
+  }
+
+  /** Hash of everything that would make an existing archive unusable */
+  private String fingerprint() throws Exception {
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+    // The JDK that runs student code is whichever "java" is on the path, not necessarily this one
+    Process proc = Runtime.getRuntime().exec("java -version");
+    proc.getOutputStream().close();
+    digest.update(proc.getInputStream().readAllBytes());
+    digest.update(proc.getErrorStream().readAllBytes());
+    proc.waitFor();
+
+    digest.update(ARCHIVE_FORMAT.getBytes());
+    digest.update(warmupMainClass.getBytes());
+    if (null != warmupSource) {
+      digest.update(warmupSource.getBytes("UTF-8"));
+    }
+    digest.update(String.join(" ", jvmFlags).getBytes());
+    for (File jar : jars) {
+      digest.update(jar.getAbsolutePath().getBytes());
+      digest.update(Files.readAllBytes(jar.toPath()));
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.substring(0, 16);
+  }
+
+  /** All of the jar files in the specified folder, sorted by name */
+  public static List<File> findJars(File dir) {
+    List<File> jars = new ArrayList<>();
+    File[] files = null == dir ? null : dir.listFiles();
+    if (null != files) {
+      for (File file : files) {
+        if (file.isFile() && file.getName().endsWith(".jar")) {
+          jars.add(file);
+        }
+      }
+    }
+    jars.sort(Comparator.comparing(File::getName));
+    return jars;
+  }
+}
@@ -0,0 +1,214 @@
+import java.util.*;
+
+/**
+ * Bit-parallel Levenshtein distance (Myers 1999, with Hyyro's blocks for strings
+ * longer than 64 characters), and a line diff (Myers 1986) to find which lines
+ * need to be compared at all.
+ *
+ * Instead of one cell of the table at a time, each column of the table is kept as
+ * bit vectors of the differences between neighboring cells, 64 rows to a long. A
+ * column takes a handful of operations per block, so the whole distance takes
+ * O(n * m / 64) time and O(m / 64) memory. The distance is the same as the classic
+ * table (see UILGrader.calculateLevenshteinDistance()).
+ */
+public class EditDistance {
+  // Past this many inserted/deleted lines, diff() stops and reports the rest as one hunk
+  private static final int MAX_DIFF_EDITS = 1000;
+
+  /**
+   * The lines that are different in x and y, found with Myers' O(ND) diff
+   *
+   * @return Each hunk of lines that don't match, as { xStart, xEnd, yStart, yEnd }
+   */
+  public static List<int[]> diff(List<String> x, List<String> y) {
+    // number the lines so equal lines have the same number, and can be compared as ints
+    Map<String, Integer> numbers = new HashMap<>();
+    int[] a = number(x, numbers);
+    int[] b = number(y, numbers);
+
+    int start = 0;
+    while (start < a.length && start < b.length && a[start] == b[start]) {
+      start++;
+    }
+    int endA = a.length;
+    int endB = b.length;
+    while (endA > start && endB > start && a[endA - 1] == b[endB - 1]) {
+      endA--;
+      endB--;
+    }
+
+    List<int[]> hunks = new ArrayList<>();
+    int n = endA - start;
+    int m = endB - start;
+    if (n == 0 || m == 0) {
+      if (n > 0 || m > 0) {
+        hunks.add(new int[] { start, endA, start, endB });
+      }
+      return hunks;
+    }
+
+    // v[k] is how far along x the furthest path on diagonal k (x - y) has gotten
+    int maxEdits = Math.min(n + m, MAX_DIFF_EDITS);
+    int offset = maxEdits + 1;
+    int[] v = new int[2 * maxEdits + 3];
+    List<int[]> trace = new ArrayList<>();
+    int edits = -1;
+    for (int d = 0; d <= maxEdits && edits < 0; d++) {
+      for (int k = -d; k <= d; k += 2) {
+        boolean down = k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1]);
+        int i = down ? v[offset + k + 1] : v[offset + k - 1] + 1;
+        int j = i - k;
+        while (i < n && j < m && a[start + i] == b[start + j]) {
+          i++;
+          j++;
+        }
+        v[offset + k] = i;
+        if (i >= n && j >= m) {
+          edits = d;
+        }
+      }
+      trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+    }
+
+    if (edits < 0) {
+      // too different to be worth it
+      hunks.add(new int[] { start, endA, start, endB });
+      return hunks;
+    }
+
+    // follow the path back, collecting the runs of matching lines (as { i, j, length })
+    List<int[]> matches = new ArrayList<>();
+    int i = n;
+    int j = m;
+    for (int d = edits; d > 0; d--) {
+      int[] previous = trace.get(d - 1); // previous[k + d - 1] is v[k] after d - 1 edits
+      int k = i - j;
+      boolean down = k == -d || (k != d && previous[k - 1 + d - 1] < previous[k + 1 + d - 1]);
+      int previousK = down ? k + 1 : k - 1;
+      int previousI = previous[previousK + d - 1];
+      int matchI = down ? previousI : previousI + 1;
+      if (i > matchI) {
+        matches.add(new int[] { matchI, matchI - k, i - matchI });
+      }
+      i = previousI;
+      j = previousI - previousK;
+    }
+    if (i > 0) {
+      matches.add(new int[] { 0, 0, i });
+    }
+    Collections.reverse(matches);
+
+    // the hunks are the gaps between the matches
+    int nextI = 0;
+    int nextJ = 0;
+    for (int[] match : matches) {
+      if (match[0] > nextI || match[1] > nextJ) {
+        hunks.add(new int[] { start + nextI, start + match[0], start + nextJ, start + match[1] });
+      }
+      nextI = match[0] + match[2];
+      nextJ = match[1] + match[2];
+    }
+    if (nextI < n || nextJ < m) {
+      hunks.add(new int[] { start + nextI, endA, start + nextJ, endB });
+    }
+    return hunks;
+  }
+
+  private static int[] number(List<String> lines, Map<String, Integer> numbers) {
+    int[] numbered = new int[lines.size()];
+    for (int i = 0; i < numbered.length; i++) {
+      Integer number = numbers.get(lines.get(i));
+      if (null == number) {
+        number = numbers.size();
+        numbers.put(lines.get(i), number);
+      }
+      numbered[i] = number;
+    }
+    return numbered;
+  }
+
+  /**
+   * The Levenshtein distance between x and y
+   */
+  public static int myers(String x, String y) {
+    if (x.length() < y.length()) {
+      // the distance is the same both ways, so make y (the bit vectors) the shorter one
+      String swap = x;
+      x = y;
+      y = swap;
+    }
+    if (y.length() == 0) {
+      return x.length();
+    }
+
+    int blocks = (y.length() + 63) / 64;
+    long lastBit = 1L << ((y.length() - 1) % 64);
+
+    // Which rows of y match each character
+    long[][] ascii = new long[128][];
+    Map<Character, long[]> others = new HashMap<>();
+    for (int i = 0; i < y.length(); i++) {
+      char c = y.charAt(i);
+      long[] eq = c < 128 ? ascii[c] : others.get(c);
+      if (null == eq) {
+        eq = new long[blocks];
+        if (c < 128) {
+          ascii[c] = eq;
+        } else {
+          others.put(c, eq);
+        }
+      }
+      eq[i / 64] |= 1L << (i % 64);
+    }
+    long[] noMatch = new long[blocks];
+
+    // Each column's vertical differences: +1 (positive) or -1 (negative), otherwise 0
+    long[] positive = new long[blocks];
+    long[] negative = new long[blocks];
+    Arrays.fill(positive, -1L);
+
+    int distance = y.length();
+    for (int j = 0; j < x.length(); j++) {
+      char c = x.charAt(j);
+      long[] eqs = c < 128 ? ascii[c] : others.get(c);
+      if (null == eqs) {
+        eqs = noMatch;
+      }
+
+      // the top row is 0, 1, 2, ... so the difference coming in from above is always +1
+      int carry = 1;
+      for (int b = 0; b < blocks; b++) {
+        long pv = positive[b];
+        long mv = negative[b];
+        long eq = eqs[b];
+
+        long xv = eq | mv;
+        if (carry < 0) {
+          eq |= 1L;
+        }
+        long xh = (((eq & pv) + pv) ^ pv) | eq;
+        long ph = mv | ~(xh | pv);
+        long mh = pv & xh;
+
+        // the horizontal difference in the block's last row goes to the next block
+        long bit = b == blocks - 1 ? lastBit : Long.MIN_VALUE;
+        int out = ((ph & bit) != 0 ? 1 : 0) - ((mh & bit) != 0 ? 1 : 0);
+
+        ph <<= 1;
+        mh <<= 1;
+        if (carry < 0) {
+          mh |= 1L;
+        } else if (carry > 0) {
+          ph |= 1L;
+        }
+
+        positive[b] = mh | ~(xv | ph);
+        negative[b] = ph & xv;
+        carry = out;
+      }
+      distance += carry;
+    }
+
+    return distance;
+  }
+}
@@ -0,0 +1,62 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * An answer file (the expected output), read and normalized once and then shared by
+ * every student. It can't be changed once it is loaded, so students graded at the same
+ * time can all use it.
+ *
+ * The lines' Strings are shared too, so each line's hashCode (see EditDistance.diff())
+ * is only calculated once.
+ */
+public final class ExpectedOutput {
+  private final List<String> lines;
+  private final List<String> trimmedLines;
+  private final int length;
+  private final int trimmedLength;
+
+  /**
+   * @param file The answer file
+   * @param normalizer How to normalize the lines (the same as the students' output)
+   */
+  public ExpectedOutput(File file, OutputNormalizer normalizer) throws IOException {
+    List<String> normalized = normalizer.readLines(file);
+    lines = Collections.unmodifiableList(normalized);
+
+    if (!normalized.isEmpty() && "".equals(normalized.get(normalized.size() - 1).trim())) {
+      trimmedLines = Collections.unmodifiableList(normalized.subList(0, normalized.size() - 1));
+    } else {
+      trimmedLines = lines;
+    }
+
+    length = lengthOf(lines);
+    trimmedLength = lengthOf(trimmedLines);
+  }
+
+  /** The length of the lines joined with "\n" */
+  private static int lengthOf(List<String> lines) {
+    int length = Math.max(0, lines.size() - 1);
+    for (String line : lines) {
+      length += line.length();
+    }
+    return length;
+  }
+
+  /**
+   * The normalized lines
+   *
+   * @param trimmed Without the last line if it is blank
+   */
+  public List<String> getLines(boolean trimmed) {
+    return trimmed ? trimmedLines : lines;
+  }
+
+  /** The length of getLines(trimmed) joined with "\n" */
+  public int getLength(boolean trimmed) {
+    return trimmed ? trimmedLength : length;
+  }
+
+  public boolean isEmpty() {
+    return lines.isEmpty();
+  }
+}
@@ -0,0 +1,67 @@
+import java.io.*;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.*;
+
+/**
+ * Loads the test folder jars (junit, hamcrest...) for every in-process student.
+ *
+ * Every student's StudentClassLoader delegates to the same FrameworkClassLoader, so the
+ * framework classes are loaded (and JIT compiled) once for the whole grader instead of
+ * once per student. Only the student's classes and the test class are loaded again.
+ *
+ * Its jars can't be changed once it is created, and one is kept for each set of jars
+ * (by their paths, sizes and modified times), so graders running in the same JVM share it.
+ */
+public final class FrameworkClassLoader extends URLClassLoader {
+  static {
+    registerAsParallelCapable();
+  }
+
+  private static final Map<String, FrameworkClassLoader> LOADERS = new HashMap<>();
+
+  private final List<File> jars;
+
+  private FrameworkClassLoader(List<File> jars, URL[] urls) {
+    super("framework", urls, ClassLoader.getPlatformClassLoader());
+    this.jars = Collections.unmodifiableList(new ArrayList<>(jars));
+  }
+
+  /** The FrameworkClassLoader for the specified jars (creating it if there isn't one yet) */
+  public static synchronized FrameworkClassLoader get(List<File> jars) throws IOException {
+    String fingerprint = fingerprint(jars);
+    FrameworkClassLoader loader = LOADERS.get(fingerprint);
+    if (null == loader) {
+      List<URL> urls = new ArrayList<>();
+      for (File jar : jars) {
+        urls.add(jar.toURI().toURL());
+      }
+      loader = new FrameworkClassLoader(jars, urls.toArray(new URL[0]));
+      LOADERS.put(fingerprint, loader);
+    }
+    return loader;
+  }
+
+  private static String fingerprint(List<File> jars) throws IOException {
+    StringBuilder fingerprint = new StringBuilder();
+    for (File jar : jars) {
+      fingerprint.append(jar.getCanonicalPath()).append('|').append(jar.length()).append('|')
+          .append(jar.lastModified()).append(File.pathSeparator);
+    }
+    return fingerprint.toString();
+  }
+
+  public List<File> getJars() {
+    return jars;
+  }
+
+  /** True if the file is one of this loader's jars (or a copy of one, with the same name) */
+  public boolean isFrameworkJar(File file) {
+    for (File jar : jars) {
+      if (jar.getName().equals(file.getName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
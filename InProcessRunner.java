@@ -0,0 +1,293 @@
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Runs a compiled program inside the grader's JVM instead of starting a new one.
+ *
+ * The student's classes are loaded by their own class loader (whose parent is the
+ * loader shared by every student for the test folder jars), main is called on its own
+ * thread with System.out and System.err sent to output.log and error.log (see
+ * StreamMultiplexer), and the class loader is thrown away when the program finishes.
+ *
+ * Student classes are rewritten as they are loaded so a program that runs past its
+ * time limit stops itself (see RunBudget), and so System.exit, starting processes and
+ * changing files outside the program's folder can't affect the grader (see RunGuard).
+ */
+public class InProcessRunner extends JavaRunner
+{
+  private ClassLoader parent;
+  private Thread thread;
+  private ThreadGroup group;
+  private RunBudget budget;
+
+  // How long a program has to stop once its budget expires
+  private static final int STOP_GRACE = 1000;
+
+  // Set as soon as the timer starts stopping the program
+  private volatile boolean stopping;
+
+  // Set once main and the program's non-daemon threads have finished (its daemon threads are then stopped)
+  private volatile boolean finished;
+
+  /** Constructor
+   *  @param File path The folder of code to be compiled
+   *  @param String filename The name of the class to be compiled/run (followed by any arguments for main)
+   *  @param int timeout The number of milliseconds to wait for this program to run before timing out. Use 0 for no timeout.
+   *  @param ClassLoader parent The class loader shared by every student (see FrameworkClassLoader)
+   */
+  public InProcessRunner(File path, String filename, int timeout, ClassLoader parent)
+  {
+    super(path, filename, timeout, null);
+    this.parent = parent;
+  }
+
+  /** Runs the program on a new thread in this JVM and waits for it to finish */
+  @Override
+  protected void launch() throws Exception
+  {
+    // Delete any output/error logs left from a previous run
+    Files.deleteIfExists(getOutputLog().toPath());
+    Files.deleteIfExists(getErrorLog().toPath());
+
+    String[] command = getFilename().trim().split("\\s+");
+    String mainClassName = command[0];
+    String[] args = Arrays.copyOfRange(command, 1, command.length);
+
+    StreamMultiplexer.install();
+
+    budget = new RunBudget();
+    RunGuard guard = new RunGuard(new File(pathTo("")));
+
+    try(StudentClassLoader loader = new StudentClassLoader(classpathUrls(), parent);
+        InputStream in = null == getInput() ? new ByteArrayInputStream(new byte[0])
+            : new BufferedInputStream(new FileInputStream(getInput()));
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(getOutputLog()));
+        OutputStream err = new BufferedOutputStream(new FileOutputStream(getErrorLog()));
+        StreamMultiplexer.Streams streams = new StreamMultiplexer.Streams(in, out, err))
+    {
+      // Threads the program starts join this group, so they can stop quietly when the budget expires
+      group = new ThreadGroup("student")
+      {
+        @Override
+        public void uncaughtException(Thread t, Throwable e)
+        {
+          if(!(e instanceof RunBudget.ExceededError) && !finished)
+          {
+            super.uncaughtException(t, e);
+          }
+        }
+      };
+
+      thread = new Thread(group, () -> {
+        // System.in/out/err for this thread (and any it starts) belong to this program
+        StreamMultiplexer.bind(streams);
+        budget.bind();
+        guard.bind();
+        invokeMain(loader, mainClassName, args, System.err);
+      }, "main");
+      // not a daemon, so the threads the program starts aren't daemons either (like the java command)
+      thread.setDaemon(false);
+      thread.setContextClassLoader(loader);
+      budget.onExpire(loader::openGate);
+      loader.setProgram(streams, budget, guard);
+      thread.start();
+      startTimer();
+
+      // wait for main to return and for the non-daemon threads it started to finish, like the JVM does
+      // (or for the timer to give up on them)
+      Thread waitingFor = thread;
+      while(null != waitingFor && !stopping)
+      {
+        waitingFor.join(10);
+        if(!waitingFor.isAlive())
+        {
+          waitingFor = findThread(group, false);
+        }
+      }
+
+      // let timeout() finish before the logs are read
+      synchronized(this)
+      {
+        if(!stopping)
+        {
+          // the java command ends the program's daemon threads when it exits, so stop them too
+          finished = true;
+          stopThreads();
+        }
+      }
+    }
+  }
+
+  /** A runner for one case, which runs the already compiled program in this JVM too */
+  @Override
+  protected JavaRunner newCaseRunner()
+  {
+    return new InProcessRunner(new File(pathTo("")), getFilename(), getTimeout(), parent);
+  }
+
+  /** The cases already run in this JVM */
+  @Override
+  protected boolean usesCaseHarness()
+  {
+    return false;
+  }
+
+  /** Load the main class and call its main method, reporting problems the same way the java command does.
+   *  This runs on the program's thread, subclasses can override it to run the student's code some other way.
+   */
+  protected void invokeMain(StudentClassLoader loader, String mainClassName, String[] args, PrintStream err)
+  {
+    Method main;
+    try
+    {
+      Class<?> mainClass = Class.forName(mainClassName, false, loader);
+      main = mainClass.getMethod("main", String[].class);
+      if(!Modifier.isStatic(main.getModifiers()))
+      {
+        throw new NoSuchMethodException("main");
+      }
+      main.setAccessible(true);
+    }
+    catch(ClassNotFoundException | LinkageError e)
+    {
+      err.println("Error: Could not find or load main class " + mainClassName);
+      err.println("Caused by: " + e);
+      return;
+    }
+    catch(NoSuchMethodException e)
+    {
+      err.println("Error: Main method not found in class " + mainClassName
+          + ", please define the main method as:");
+      err.println("   public static void main(String[] args)");
+      return;
+    }
+
+    try
+    {
+      main.invoke(null, (Object)args);
+    }
+    catch(InvocationTargetException e)
+    {
+      if(wasStopped())
+      {
+        return;
+      }
+      err.print("Exception in thread \"main\" ");
+      Throwable cause = e.getCause();
+      cause.setStackTrace(trimStackTrace(cause.getStackTrace(), mainClassName));
+      cause.printStackTrace(err);
+    }
+    catch(Throwable t)
+    {
+      err.print("Exception in thread \"main\" ");
+      t.printStackTrace(err);
+    }
+  }
+
+  /** The time budget of the running program */
+  protected RunBudget getBudget()
+  {
+    return budget;
+  }
+
+  /** True if the program was stopped by the timer, or by System.exit (which ends the program like main returning) */
+  protected boolean wasStopped()
+  {
+    return stopping || null != budget.getExitStatus();
+  }
+
+  /** Remove the grader's frames (below the student's main method) from a stack trace */
+  protected static StackTraceElement[] trimStackTrace(StackTraceElement[] trace, String mainClassName)
+  {
+    for(int i = trace.length - 1; i >= 0; i--)
+    {
+      if(trace[i].getClassName().equals(mainClassName) && trace[i].getMethodName().equals("main"))
+      {
+        return Arrays.copyOf(trace, i + 1);
+      }
+    }
+    return trace;
+  }
+
+  /** The code folder followed by any extra classpath entries (except copies of the jars the parent already loads) */
+  private URL[] classpathUrls() throws IOException
+  {
+    List<URL> urls = new ArrayList<>();
+    urls.add(new File(pathTo("")).toURI().toURL());
+    for(String cpFilename : getClassPath())
+    {
+      File entry = new File(cpFilename);
+      if(parent instanceof FrameworkClassLoader && ((FrameworkClassLoader)parent).isFrameworkJar(entry))
+      {
+        continue;
+      }
+      urls.add(entry.toURI().toURL());
+    }
+    return urls.toArray(new URL[0]);
+  }
+
+  /** A running thread the program started (a daemon or not), or null if there aren't any.
+   *  Threads shared by every program aren't the program's, even if it started them.
+   */
+  private static Thread findThread(ThreadGroup group, boolean daemons)
+  {
+    Thread[] threads = new Thread[group.activeCount() + 1];
+    int count = group.enumerate(threads);
+    for(int i = 0; i < count; i++)
+    {
+      if(threads[i].isAlive() && (daemons || !threads[i].isDaemon()) && !StudentClassLoader.isShared(threads[i]))
+      {
+        return threads[i];
+      }
+    }
+    return null;
+  }
+
+  /** Stop the program's threads when it exceeds its time limit */
+  @Override
+  protected synchronized void timeout()
+  {
+    if(finished)
+    {
+      // the program ended on time, only its daemon threads were left
+      return;
+    }
+    stopping = true;
+    if(null != group && null != findThread(group, false))
+    {
+      stopThreads();
+      writeTimeoutLog();
+    }
+
+    super.timeout();
+  }
+
+  /** Stop every thread the program started, waiting up to STOP_GRACE for them */
+  private void stopThreads()
+  {
+    // The program's code throws RunBudget.ExceededError at its next loop/method/catch
+    budget.expire();
+    group.interrupt();
+    long deadline = System.currentTimeMillis() + STOP_GRACE;
+    Thread running;
+    while(null != (running = findThread(group, true)) && System.currentTimeMillis() < deadline)
+    {
+      try
+      {
+        running.join(Math.max(1, deadline - System.currentTimeMillis()));
+      }
+      catch(InterruptedException e)
+      {
+        break;
+      }
+    }
+
+    // If a thread is stuck somewhere that isn't checked (like a JDK method) it is left behind
+    // (the graders end with System.exit, so it doesn't keep the grader running)
+  }
+}
@@ -1,5 +1,8 @@
 import java.io.*;
 import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import picocli.CommandLine.*;
 
@@ -40,6 +43,54 @@ public abstract class JEMGrader {
   @Option(names = { "--inplace" }, description = "Should student & test files be copied to a temp folder before compiling & running (default: true")
   private boolean skipTempFolder;
 
+  @Option(names = { "--cds" }, description = "Share a Class Data Sharing archive of the jars in the test folder between all student programs to speed up their startup.")
+  private boolean useClassDataSharing;
+
+  @Option(names = { "--cds-cache" }, description = "Folder to keep Class Data Sharing archives in. Default .jemgrader-cds")
+  private String classDataSharingCache = ".jemgrader-cds";
+
+  @Option(names = { "--profile" }, description = "JVM launch profile for student programs: default, fast-start or low-memory. Default default.")
+  private String launchProfileName = LaunchProfile.DEFAULT;
+
+  @Option(names = { "--jvm-flag" }, description = "Extra flag for the JVM that runs student programs, ex: --jvm-flag=-Xmx32m (repeatable)")
+  private List<String> jvmFlags = new ArrayList<>();
+
+  private LaunchProfile launchProfile;
+
+  public static final String PROCESS_BACKEND = "process";
+  public static final String IN_PROCESS_BACKEND = "in-process";
+
+  @Option(names = { "--backend" }, description = "How student programs are run: process (a new JVM for each student) or in-process (inside the grader, guarded by the grader instead of --policy). Default process.")
+  private String backend = PROCESS_BACKEND;
+
+  // The class loader for the test folder jars shared by every in-process student
+  private ClassLoader sharedClassLoader;
+
+  @Option(names = { "--compile-first" }, description = "Compile every student (in parallel) before running any code. Compile errors are reported first.")
+  private boolean compileFirst;
+
+  @Option(names = { "-j", "--jobs" }, description = "How many student programs to run at the same time. Default 1.")
+  private int jobs = 1;
+
+  @Option(names = { "--dedup" }, description = "Compile and run identical submissions (the same files) once, and give every copy the same results.")
+  private boolean dedup;
+
+  @Option(names = { "--dedup-report" }, description = "File to list the groups of identical submissions in (turns on --dedup).")
+  private String dedupReport;
+
+  @Option(names = { "--similarity-report" }, description = "File to list the most similar pairs of students' code in.")
+  private String similarityReport;
+
+  @Option(names = { "--similarity-pairs" }, description = "How many pairs to list in the --similarity-report. Default 50.")
+  private int similarityPairs = 50;
+
+  // The fingerprints of every student's code (null without --similarity-report)
+  private SimilarityIndex similarityIndex;
+
+  // The Class Data Sharing archive used for this lab (null if not sharing)
+  private File sharedArchive;
+  private ClassDataSharing classDataSharing;
+
   public void setUseTempFolder(boolean useTempFolder) {
     this.skipTempFolder = !useTempFolder;
   }  
@@ -68,6 +119,56 @@ public abstract class JEMGrader {
     return fileToCompile;
   }
 
+  public void setLaunchProfile(String name) {
+    launchProfileName = name;
+  }
+
+  public void addJvmFlag(String flag) {
+    jvmFlags.add(flag);
+  }
+
+  public void setBackend(String backend) {
+    this.backend = backend;
+  }
+
+  public boolean isInProcess() {
+    return IN_PROCESS_BACKEND.equals(backend);
+  }
+
+  public void setJobs(int jobs) {
+    this.jobs = Math.max(1, jobs);
+  }
+
+  public void setCompileFirst(boolean compileFirst) {
+    this.compileFirst = compileFirst;
+  }
+
+  public void setDedup(boolean dedup) {
+    this.dedup = dedup;
+  }
+
+  public void setUseClassDataSharing(boolean useClassDataSharing) {
+    this.useClassDataSharing = useClassDataSharing;
+  }
+
+  /**
+   * The class run to warm up the Class Data Sharing archive. It must be in one of the
+   * jars in the test folder. Return null if this grader has nothing to share.
+   *
+   * This method should be overloaded by graders that put jars on the classpath.
+   */
+  public String getClassDataSharingWarmup() {
+    return null;
+  }
+
+  /**
+   * The source code of getClassDataSharingWarmup(), if it isn't in the test folder jars.
+   * It's run with the java command's source file mode, so it can only use the jars and the JDK.
+   */
+  public String getClassDataSharingWarmupSource() {
+    return null;
+  }
+
   /**
    * Compiles and runs code in each student folder
    *
@@ -75,6 +176,27 @@ public abstract class JEMGrader {
    * student folder 3. Deletes the temp folder
    */
   public int go() {
+    jobs = Math.max(1, jobs);
+    dedup = dedup || null != dedupReport;
+    if (!PROCESS_BACKEND.equals(backend) && !IN_PROCESS_BACKEND.equals(backend)) {
+      throw new IllegalArgumentException("Unknown backend: " + backend + ". Expected " + PROCESS_BACKEND + " or "
+          + IN_PROCESS_BACKEND);
+    }
+
+    if (isInProcess() && null == ClassRewriter.get()) {
+      throw new IllegalStateException("The " + IN_PROCESS_BACKEND + " backend needs BytecodeRewriter (in the "
+          + "inprocess folder) to be built, and the grader to be run with "
+          + "--add-exports java.base/jdk.internal.org.objectweb.asm=ALL-UNNAMED "
+          + "--add-exports java.base/jdk.internal.org.objectweb.asm.tree=ALL-UNNAMED");
+    }
+
+    launchProfile = new LaunchProfile(launchProfileName, jvmFlags);
+    if (isInProcess()) {
+      System.err.println("Backend: " + backend);
+    } else {
+      System.err.println("Launch profile: " + launchProfile);
+    }
+
     File tempFolderFolder = null;
     if (!skipTempFolder) {
       // Create a folder to store temp folders    
@@ -89,13 +211,46 @@ public abstract class JEMGrader {
       testDir = new File(pathToTests);
     }
 
+    if (isInProcess()) {
+      try {
+        sharedClassLoader = FrameworkClassLoader.get(ClassDataSharing.findJars(testDir));
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    else if (useClassDataSharing) {
+      prepareClassDataSharing(testDir);
+    }
+
     setup();
 
+    if (null != similarityReport) {
+      similarityIndex = new SimilarityIndex();
+      if (null != testDir) {
+        try {
+          similarityIndex.ignore(testDir);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+
     File labDir = new File(pathToStudentFiles);
     File[] studentDirs = labDir.listFiles();
-    if (null != studentDirs) {
+    if (null != studentDirs && (compileFirst || jobs > 1 || dedup)) {
+      List<File> folders = new ArrayList<>();
       for (File studentDir : studentDirs) {
         if (studentDir.isDirectory()) {
+          index(studentDir);
+          folders.add(studentDir);
+        }
+      }
+      gradeInParallel(folders, testDir, tempFolderFolder);
+    }
+    else if (null != studentDirs) {
+      for (File studentDir : studentDirs) {
+        if (studentDir.isDirectory()) {
+          index(studentDir);
           test(studentDir, testDir, tempFolderFolder);
         }
       }
@@ -109,6 +264,10 @@ public abstract class JEMGrader {
       deleteDir(tempFolderFolder);
     }
 
+    if (null != similarityIndex) {
+      writeSimilarityReport();
+    }
+
     cleanup();
 
     return 0;
@@ -120,7 +279,44 @@ public abstract class JEMGrader {
    * This method should be overloaded if you need to add files to the classpath
    */
   public JavaRunner getJavaRunner(File dir) {
-    return new JavaRunner(dir, fileToCompile, timeout, policy);
+    if (isInProcess()) {
+      return getInProcessRunner(dir, fileToCompile, timeout, sharedClassLoader);
+    }
+
+    JavaRunner jr = new JavaRunner(dir, fileToCompile, timeout, policy);
+    if (null != launchProfile) {
+      jr.addJvmFlags(launchProfile.getFlags());
+    }
+    if (null != sharedArchive) {
+      jr.setSharedArchive(sharedArchive, classDataSharing.getClasspath());
+    }
+    return jr;
+  }
+
+  /**
+   * Instantiates the JavaRunner used by the in-process backend
+   *
+   * This method should be overloaded if the code needs to be run some other way than calling main
+   *
+   * @param sharedClassLoader The class loader shared by every student, which can load the test folder jars
+   */
+  protected InProcessRunner getInProcessRunner(File dir, String filename, int timeout, ClassLoader sharedClassLoader) {
+    return new InProcessRunner(dir, filename, timeout, sharedClassLoader);
+  }
+
+  /**
+   * Create (or find the cached) Class Data Sharing archive for the jars in the test folder
+   */
+  private void prepareClassDataSharing(File testDir) {
+    String warmup = getClassDataSharingWarmup();
+    List<File> jars = ClassDataSharing.findJars(testDir);
+    if (null == warmup || jars.isEmpty()) {
+      return;
+    }
+
+    classDataSharing = new ClassDataSharing(new File(classDataSharingCache), jars, warmup,
+        getClassDataSharingWarmupSource(), launchProfile.getFlags());
+    sharedArchive = classDataSharing.prepare();
   }
 
   /**
@@ -154,13 +350,37 @@ public abstract class JEMGrader {
    * @param tempFolderFolder
    */
   public void copyAndCompileAndRun(File studentDir, File testDir, File tempFolderFolder)
+  {
+    File tempDir = null;
+    try {
+      tempDir = stage(studentDir, testDir, tempFolderFolder);
+
+      JavaRunner jr = compileAndRun(tempDir, studentDir);
+
+      collectLogs(jr, studentDir);
+    } catch (Exception e) {
+      e.printStackTrace();
+    } finally {
+      // delete temp folder
+      if (null != tempDir) {
+        deleteDir(tempDir);
+      }
+    }
+  }
+
+  /**
+   * Create a temp folder inside tempFolderFolder and copy the testDir and studentDir files into it.
+   * Old log files are deleted from studentDir.
+   *
+   * @return the temp folder
+   */
+  private File stage(File studentDir, File testDir, File tempFolderFolder) throws IOException
   {
     // Create temp folder to hold this student's files for compiling
     String tempDirName = tempFolderFolder.getPath() + File.separator + "temp-" + studentDir.getName() + "-"
     + System.currentTimeMillis();
     File tempDir = new File(tempDirName);
 
-    try {
     // create temp dir for student files
     tempDir.mkdir();
 
@@ -179,6 +399,14 @@ public abstract class JEMGrader {
     Files.copy(file.toPath(), dest.toPath());
     }
 
+    deleteOldLogs(studentDir);
+
+    return tempDir;
+  }
+
+  /** Delete the log files left in studentDir by the last time it was graded */
+  private void deleteOldLogs(File studentDir) throws IOException
+  {
     // delete old compile log
     File compileLogDest = new File(studentDir.getPath() + File.separator + "compile.log");
     Files.deleteIfExists(compileLogDest.toPath());
@@ -190,8 +418,77 @@ public abstract class JEMGrader {
     // delete old error log
     File errLogDest = new File(studentDir.getPath() + File.separator + "error.log");
     Files.deleteIfExists(errLogDest.toPath());
+  }
+
+  /**
+   * A hash of the files in studentDir and its subfolders (their paths in studentDir and
+   * their contents), so identical submissions have the same fingerprint. Files the grader
+   * writes (logs, classes and the case harness's status) are left out, so --inplace folders
+   * that were graded before still match.
+   *
+   * @return the fingerprint, or null if the files can't be read
+   */
+  private static String fingerprint(File studentDir) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      if (!addToFingerprint(studentDir, "", digest, new byte[8192])) {
+        return null;
+      }
+      return Base64.getEncoder().encodeToString(digest.digest());
+    } catch (IOException | NoSuchAlgorithmException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Add the files in dir (named path + their name) and its subfolders to the digest
+   *
+   * @return false if a folder can't be read
+   */
+  private static boolean addToFingerprint(File dir, String path, MessageDigest digest, byte[] buffer)
+      throws IOException {
+    File[] files = dir.listFiles();
+    if (null == files) {
+      return false;
+    }
+    Arrays.sort(files);
+
+    for (File file : files) {
+      String name = path + file.getName();
+      if (file.isDirectory()) {
+        // the folder's name is added too, so an empty folder still counts
+        digest.update((name + "/").getBytes("UTF-8"));
+        digest.update((byte) 0);
+        // links to folders aren't followed, so a link to a parent folder doesn't go around forever
+        if (!Files.isSymbolicLink(file.toPath()) && !addToFingerprint(file, name + "/", digest, buffer)) {
+          return false;
+        }
+        continue;
+      }
+      if (!file.isFile() || name.endsWith(".log") || name.endsWith(".class") || file.getName().equals("cases.status")) {
+        continue;
+      }
+      digest.update(name.getBytes("UTF-8"));
+      digest.update((byte) 0);
+      try (InputStream in = new DigestInputStream(new FileInputStream(file), digest)) {
+        while (in.read(buffer) != -1) {
+          // the DigestInputStream adds what is read to the digest
+        }
+      }
+      digest.update((byte) 0);
+    }
+    return true;
+  }
 
-    JavaRunner jr = compileAndRun(tempDir, studentDir);
+  /**
+   * Copy the log files created by the JavaRunner in its temp folder into studentDir
+   */
+  private void collectLogs(JavaRunner jr, File studentDir) throws IOException
+  {
+    File compileLogDest = new File(studentDir.getPath() + File.separator + "compile.log");
+    File outputLogDest = new File(studentDir.getPath() + File.separator + "output.log");
+    File errLogDest = new File(studentDir.getPath() + File.separator + "error.log");
 
     if (jr.wasLastCompileSuccessful()) {
     // copy output.log to studentDir
@@ -213,6 +510,24 @@ public abstract class JEMGrader {
         e.printStackTrace();
       }
     }
+
+    // copy each case's logs to studentDir
+    if (null != jr.getCases()) {
+      for (JavaRunner c : jr.getCases()) {
+        try {
+          if (c.getOutputLog().exists()) {
+            Files.copy(c.getOutputLog().toPath(), new File(studentDir, c.getOutputLog().getName()).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+          }
+          if (c.getErrorLog().exists() && c.getErrorLog().length() > 0) {
+            Files.copy(c.getErrorLog().toPath(), new File(studentDir, c.getErrorLog().getName()).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+          }
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    }
     }
     else {
       // copy compile.log to studentDir
@@ -221,12 +536,230 @@ public abstract class JEMGrader {
         Files.copy(compileLog.toPath(), compileLogDest.toPath());
       }
     }
+  }
 
+  /**
+   * Grade every student using a pool of threads.
+   *
+   * Students are staged and compiled in parallel a few at a time, just ahead of the
+   * student being reported, and the students whose code compiled are run --jobs at a
+   * time. The hooks are always called from this thread, and each hook is called in
+   * student order, so graders don't need to be thread safe. A student's afterExecute (or
+   * afterCompileError) and afterEverything are called together, but by then beforeCompile
+   * and beforeExecute have already been called for the next few students. A grader that
+   * keeps something from beforeCompile or beforeExecute until afterEverything must keep
+   * it per student (ex: in a map keyed by the student's folder, like UILStyleGrader).
+   *
+   * With --compile-first, every student is staged and compiled, and every compile error
+   * is reported, before any code is run.
+   *
+   * With --dedup, a student whose files are identical to an earlier student's is a copy:
+   * it isn't compiled or run, the hooks get the earlier student's JavaRunner (except
+   * beforeExecute, which already happened) and its logs are copied into the copy's folder.
+   */
+  private void gradeInParallel(List<File> studentDirs, File testDir, File tempFolderFolder) {
+    List<Submission> submissions = new ArrayList<>();
+    Map<String, Submission> originals = new HashMap<>();
+    for (File studentDir : studentDirs) {
+      Submission submission = new Submission(studentDir);
+      // copies are found up front, so an original's temp folder is kept until its last copy is reported
+      // a folder that can't be read is never a copy
+      String fingerprint = dedup ? fingerprint(studentDir) : null;
+      Submission original = null == fingerprint ? null : originals.putIfAbsent(fingerprint, submission);
+      if (null != original) {
+        submission.original = original;
+        original.copies.add(submission);
+      }
+      submissions.add(submission);
+    }
+
+    int threads = Math.max(jobs, Runtime.getRuntime().availableProcessors());
+    ExecutorService compilers = Executors.newFixedThreadPool(threads);
+    ExecutorService runners = Executors.newFixedThreadPool(jobs);
+    try {
+      int prepared = 0; // students staged and sent to be compiled
+      int started = 0; // students sent to be run (or that don't need to be)
+
+      if (compileFirst) {
+        // compile everyone and report compile errors
+        for (; prepared < submissions.size(); prepared++) {
+          prepare(submissions.get(prepared), testDir, tempFolderFolder, compilers);
+        }
+        int compileErrors = 0;
+        int staged = 0;
+        for (Submission submission : submissions) {
+          if (null == submission.jr) {
+            continue;
+          }
+          staged++;
+          waitFor(submission.compile);
+          if (!submission.jr.wasLastCompileSuccessful()) {
+            afterCompileError(submission.jr, submission.studentDir);
+            afterEverything(submission.studentDir);
+            finish(submission, tempFolderFolder);
+            compileErrors++;
+          }
+        }
+        System.err.println(compileErrors + " of " + staged + " students did not compile");
+      }
+
+      // report results in order, keeping the next few students compiling and running
+      for (int i = 0; i < submissions.size(); i++) {
+        for (; prepared < submissions.size() && prepared <= i + threads; prepared++) {
+          prepare(submissions.get(prepared), testDir, tempFolderFolder, compilers);
+        }
+        for (; started < prepared && (started <= i || submissions.get(started).compile.isDone()); started++) {
+          start(submissions.get(started), runners);
+        }
+        report(submissions.get(i), tempFolderFolder);
+      }
+    } finally {
+      compilers.shutdown();
+      runners.shutdown();
+    }
+
+    if (null != dedupReport) {
+      writeDedupReport(submissions);
+    }
+  }
+
+  /** Stage a student (unless it's a copy), call beforeCompile and start compiling it */
+  private void prepare(Submission submission, File testDir, File tempFolderFolder, ExecutorService compilers) {
+    Submission original = submission.original;
+    if (null != original && null == original.jr) {
+      // the original couldn't be staged, so this copy has to be graded on its own
+      original.copies.remove(submission);
+      submission.original = null;
+    }
+
+    if (null != submission.original) {
+      submission.jr = original.jr;
+      submission.compile = original.compile;
+      beforeCompile(submission.jr, submission.studentDir);
+      return;
+    }
+
+    try {
+      submission.runDir = null == tempFolderFolder ? submission.studentDir
+          : stage(submission.studentDir, testDir, tempFolderFolder);
+    } catch (Exception e) {
+      e.printStackTrace();
+      submission.compile = CompletableFuture.completedFuture(false);
+      return;
+    }
+    submission.jr = getJavaRunner(submission.runDir);
+    beforeCompile(submission.jr, submission.studentDir);
+    submission.compile = compilers.submit(submission.jr::compile);
+  }
+
+  /** Wait for a student to compile, then call beforeExecute and start running it */
+  private void start(Submission submission, ExecutorService runners) {
+    waitFor(submission.compile);
+    if (null != submission.jr && null == submission.original && submission.jr.wasLastCompileSuccessful()) {
+      JavaRunner jr = submission.jr;
+      beforeExecute(jr, submission.studentDir);
+      submission.execution = runners.submit(() -> jr.execute(true));
+    }
+  }
+
+  /** Wait for a student's results and call the rest of the hooks */
+  private void report(Submission submission, File tempFolderFolder) {
+    if (null == submission.jr) {
+      return; // couldn't be staged
+    }
+
+    if (submission.jr.wasLastCompileSuccessful()) {
+      waitFor((null == submission.original ? submission : submission.original).execution);
+      processResults(submission.jr, submission.studentDir);
+    }
+    else if (!compileFirst) {
+      afterCompileError(submission.jr, submission.studentDir);
+    }
+    else {
+      return; // already reported
+    }
+
+    afterEverything(submission.studentDir);
+    finish(submission, tempFolderFolder);
+  }
+
+  private static void waitFor(Future<?> future) {
+    try {
+      future.get();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Copy a staged submission's logs (or a copy's original's logs) into its student folder,
+   * and delete its temp folder once its copies don't need it
+   */
+  private void finish(Submission submission, File tempFolderFolder) {
+    Submission original = null == submission.original ? submission : submission.original;
+    try {
+      if (submission != original) {
+        deleteOldLogs(submission.studentDir);
+        collectLogs(submission.jr, submission.studentDir);
+      }
+      else if (null != tempFolderFolder) {
+        collectLogs(submission.jr, submission.studentDir);
+      }
     } catch (Exception e) {
       e.printStackTrace();
     } finally {
-      // delete temp folder
-      deleteDir(tempDir);
+      submission.finished = true;
+      if (null != tempFolderFolder && original.finished && original.copies.stream().allMatch(copy -> copy.finished)) {
+        deleteDir(original.runDir);
+      }
+    }
+  }
+
+  /** Add a student's code to the --similarity-report */
+  private void index(File studentDir) {
+    if (null == similarityIndex) {
+      return;
+    }
+
+    try {
+      similarityIndex.add(studentDir.getName(), studentDir);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /** List the --similarity-pairs most similar pairs of students in the --similarity-report file */
+  private void writeSimilarityReport() {
+    List<String> lines = new ArrayList<>();
+    lines.add("Student A, Student B, Shared Fingerprints, % of A, % of B");
+    lines.addAll(similarityIndex.topPairs(similarityPairs));
+
+    try {
+      Files.write(Paths.get(similarityReport), lines);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /** List each group of identical submissions (one line each) in the --dedup-report file */
+  private void writeDedupReport(List<Submission> submissions) {
+    List<String> lines = new ArrayList<>();
+    lines.add("Identical Submissions");
+    for (Submission submission : submissions) {
+      if (!submission.copies.isEmpty()) {
+        List<String> names = new ArrayList<>();
+        names.add(submission.studentDir.getName());
+        for (Submission copy : submission.copies) {
+          names.add(copy.studentDir.getName());
+        }
+        lines.add(String.join(", ", names));
+      }
+    }
+
+    try {
+      Files.write(Paths.get(dedupReport), lines);
+    } catch (IOException e) {
+      e.printStackTrace();
     }
   }
 
@@ -247,20 +780,7 @@ public abstract class JEMGrader {
 
     if (successfulCompile) 
     {
-      // allow modifications to the JavaRunner before executing the code
-      beforeExecute(jr, studentSourceDir);
-
-      // Run the code!
-      jr.execute(true);
-
-      // process results
-      if (jr.timedOut()) 
-      {
-        afterTimeoutError(jr, studentSourceDir);
-      } 
-      else {
-        afterExecute(jr, studentSourceDir);
-      }
+      run(jr, studentSourceDir);
     } 
     else // compile error
     {
@@ -272,6 +792,35 @@ public abstract class JEMGrader {
     return jr;
   }
 
+  /**
+   * Run code that has already been compiled by the JavaRunner
+   *
+   * @param jr The JavaRunner that compiled the code
+   * @param studentSourceDir The folder that contains the student's original source files
+   */
+  private void run(JavaRunner jr, File studentSourceDir) {
+    // allow modifications to the JavaRunner before executing the code
+    beforeExecute(jr, studentSourceDir);
+
+    // Run the code!
+    jr.execute(true);
+
+    processResults(jr, studentSourceDir);
+  }
+
+  /**
+   * Call the hook for how code that has been run by the JavaRunner finished
+   */
+  private void processResults(JavaRunner jr, File studentSourceDir) {
+    if (jr.timedOut()) 
+    {
+      afterTimeoutError(jr, studentSourceDir);
+    } 
+    else {
+      afterExecute(jr, studentSourceDir);
+    }
+  }
+
   /** Recusively deletes the specified folder */
   public static boolean deleteDir(File directoryToBeDeleted) {
     File[] allContents = directoryToBeDeleted.listFiles();
@@ -282,4 +831,22 @@ public abstract class JEMGrader {
     }
     return directoryToBeDeleted.delete();
   }
+
+  /** A student's code that has been copied to the folder it will be compiled and run in */
+  private static class Submission {
+    File studentDir;
+    File runDir;
+    JavaRunner jr;
+    Future<Boolean> compile;
+    Future<?> execution;
+
+    // With --dedup: the earlier submission this is a copy of, or the copies of this one
+    Submission original;
+    List<Submission> copies = new ArrayList<>();
+    boolean finished;
+
+    Submission(File studentDir) {
+      this.studentDir = studentDir;
+    }
+  }
 }
@@ -2,6 +2,7 @@ import java.io.*;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.regex.*;
 
 import picocli.CommandLine;
 import picocli.CommandLine.Model.CommandSpec;
@@ -13,34 +14,283 @@ public class JUnitGrader extends JEMGrader implements Callable<Integer>
   protected int failed;
   protected int percent;
 
+  @Option(names = { "--test-timeout" }, description = "How many milliseconds each test method can run before it fails (" + IN_PROCESS_BACKEND + " backend only). Default 0 (no limit).")
+  private int testTimeout;
+
+  @Option(names = { "--test-columns" }, description = "Add a result column and a milliseconds column for each test method (" + IN_PROCESS_BACKEND + " backend only).")
+  private boolean testColumns;
+
+  @Option(names = { "--test-jobs" }, description = "How many of a student's test methods can run at the same time (" + IN_PROCESS_BACKEND + " backend only). Test classes with @FixMethodOrder or @NotThreadSafe, and test methods with @NotThreadSafe, are run one at a time. Default 1.")
+  private int testJobs = 1;
+
+  @Option(names = { "--junit-platform" }, description = "Run the tests with the JUnit Platform launcher (JUnit 5) from the jars in the test folder (" + IN_PROCESS_BACKEND + " backend only).")
+  private boolean platform;
+
+  @Option(names = { "--test-history" }, description = "Properties file of how often each test method has failed. Tests that fail most often are run first, and the file is updated with this run's results (" + IN_PROCESS_BACKEND + " backend only).")
+  private String testHistoryFile;
+
+  @Option(names = { "--max-failures" }, description = "Stop a student's tests once this many have failed, for quick triage runs (" + IN_PROCESS_BACKEND + " backend only). Default 0 (no limit).")
+  private int maxFailures;
+
+  // How many times each test method has run (<name>.runs) and failed (<name>.failures)
+  private Properties testHistory = new Properties();
+
+  // The runners whose results are already in the test history (with --dedup, copies are reported with their original's runner)
+  private Set<JavaRunner> recordedRunners = Collections.newSetFromMap(new WeakHashMap<>());
+  private Map<String, Double> failureRates = new HashMap<>();
+
+  // The test methods in the test file (for --test-columns)
+  protected List<String> testNames = new ArrayList<>();
+  protected JUnitResults results;
+
   @Override
   @Command(name = "JUnitGrader", mixinStandardHelpOptions = true, version = "JUnitGrader 1.0", description = "Grades assignments using JUnit tests.")
   public JavaRunner getJavaRunner(File dir)
   {
     JavaRunner jr = super.getJavaRunner(dir);
-    jr.addLocalClassPath("junit-4.13.jar");
-    jr.addLocalClassPath("hamcrest-core-1.3.jar");
+
+    // junit (or the JUnit Platform) and anything else the tests need
+    List<File> jars = ClassDataSharing.findJars(new File(getPathToTests()));
+    if(jars.isEmpty())
+    {
+      jr.addLocalClassPath("junit-4.13.jar");
+      jr.addLocalClassPath("hamcrest-core-1.3.jar");
+    }
+    for(File jar : jars)
+    {
+      jr.addLocalClassPath(jar.getName());
+    }
     return jr;
   }
 
+  @Override
+  protected InProcessRunner getInProcessRunner(File dir, String filename, int timeout, ClassLoader sharedClassLoader)
+  {
+    JUnitRunner jr = new JUnitRunner(dir, filename, timeout, sharedClassLoader);
+    jr.setTestTimeout(testTimeout);
+    jr.setTestThreads(testJobs);
+    jr.setPlatform(platform);
+    jr.setMaxFailures(maxFailures);
+    if(null != testHistoryFile)
+    {
+      // most likely to fail first
+      jr.setTestOrder(Comparator.comparing((String name) -> failureRates.getOrDefault(name, 0.5)).reversed());
+    }
+    return jr;
+  }
+
+  @Override
+  public String getClassDataSharingWarmup()
+  {
+    return "JemJUnitWarmup";
+  }
+
+  /** Runs a few tests through JUnitCore's command line, the same way students' tests are run,
+   *  passing and failing them in the usual ways so the classes for each outcome are loaded
+   */
+  @Override
+  public String getClassDataSharingWarmupSource()
+  {
+    return String.join("\n",
+        "import org.junit.*;",
+        "import org.junit.runner.JUnitCore;",
+        "import static org.junit.Assert.*;",
+        "import static org.hamcrest.CoreMatchers.*;",
+        "import static org.hamcrest.MatcherAssert.assertThat;",
+        "",
+        "public class JemJUnitWarmup {",
+        "  public static void main(String[] args) {",
+        "    // the tests are compiled in memory, JUnitCore finds them through the context class loader",
+        "    Thread.currentThread().setContextClassLoader(JemJUnitWarmup.class.getClassLoader());",
+        "    JUnitCore.main(Tests.class.getName());",
+        "  }",
+        "",
+        "  public static class Tests {",
+        "    @BeforeClass public static void beforeClass() {}",
+        "    @Before public void before() {}",
+        "    @After public void after() {}",
+        "    @Test public void passes() { assertEquals(3, 1 + 2); assertTrue(true); assertThat(\"a\", is(\"a\")); }",
+        "    @Test public void failsEquals() { assertEquals(4, 1 + 2); }",
+        "    @Test public void failsDoubles() { assertEquals(0.5, 1.0 / 3, 0.001); }",
+        "    @Test public void failsStrings() { assertEquals(\"a\", \"b\"); }",
+        "    @Test public void failsArrays() { assertArrayEquals(new int[] { 1 }, new int[] { 2 }); }",
+        "    @Test public void failsThat() { assertThat(1, is(2)); }",
+        "    @Test public void throwsException() { throw new IllegalStateException(); }",
+        "    @Test(expected = IllegalStateException.class) public void expects() { throw new IllegalStateException(); }",
+        "    @Test(timeout = 1000) public void timed() {}",
+        "    @Ignore @Test public void ignored() {}",
+        "  }",
+        "}",
+        "");
+  }
+
+  public void setTestTimeout(int testTimeout)
+  {
+    this.testTimeout = testTimeout;
+  }
+
+  public void setTestJobs(int testJobs)
+  {
+    this.testJobs = testJobs;
+  }
+
+  public void setPlatform(boolean platform)
+  {
+    this.platform = platform;
+  }
+
+  public void setTestHistoryFile(String testHistoryFile)
+  {
+    this.testHistoryFile = testHistoryFile;
+  }
+
+  public void setMaxFailures(int maxFailures)
+  {
+    this.maxFailures = maxFailures;
+  }
+
+  public void setTestColumns(boolean testColumns)
+  {
+    this.testColumns = testColumns;
+  }
+
   public void printResultHeader()
   {
-    System.out.println("Student, #Pass, #Fail, %Pass");
+    String header = "Student, #Pass, #Fail, %Pass";
+    for(String name : testNames)
+    {
+      header += ", " + name + ", " + name + " ms";
+    }
+    System.out.println(header);
   }
 
   public void printResult(File dir)
   {
-    System.out.printf("%s, %s, %d, %d%n", dir.getName().replaceAll("_" , " "), passed, failed, percent);
+    String row = String.format("%s, %s, %d, %d", dir.getName().replaceAll("_" , " "), passed, failed, percent);
+    for(String name : testNames)
+    {
+      row += ", " + testColumns(name);
+    }
+    System.out.println(row);
+  }
+
+  /** The result (P, F, T, I or S for stopped) and milliseconds columns of a test method */
+  private String testColumns(String name)
+  {
+    if(null == results)
+    {
+      return failed < 0 ? "-1, -1" : "-, -1";
+    }
+
+    JUnitResults.TestOutcome outcome = results.getOutcome(name);
+    if(null == outcome)
+    {
+      return "-, -1";
+    }
+    return outcome.getStatus().name().charAt(0) + ", " + outcome.getDuration();
   }
 
   public void setup()
   {
+    if(testColumns)
+    {
+      testNames = findTestNames(new File(getPathToTests(), getFileToCompile() + ".java"));
+    }
+    if(null != testHistoryFile)
+    {
+      loadTestHistory();
+    }
     printResultHeader();
   }
 
-  public void cleanup()
+  /** Read the test history file, and work out each test's failure rate from it */
+  private void loadTestHistory()
+  {
+    File file = new File(testHistoryFile);
+    if(file.exists())
+    {
+      try(InputStream in = new FileInputStream(file))
+      {
+        testHistory.load(in);
+      }
+      catch(Exception e)
+      {
+        e.printStackTrace();
+      }
+    }
+
+    for(String key : testHistory.stringPropertyNames())
+    {
+      if(key.endsWith(".runs"))
+      {
+        String name = key.substring(0, key.length() - ".runs".length());
+        int runs = Integer.parseInt(testHistory.getProperty(key));
+        int failures = Integer.parseInt(testHistory.getProperty(name + ".failures", "0"));
+
+        // tests that haven't run much stay near the middle (0.5) of the order
+        failureRates.put(name, (failures + 1.0) / (runs + 2.0));
+      }
+    }
+  }
+
+  /** Add a student's test results to the test history */
+  private void recordTestHistory(JUnitResults results)
+  {
+    for(JUnitResults.TestOutcome outcome : results.getOutcomes())
+    {
+      JUnitResults.Status status = outcome.getStatus();
+      if(JUnitResults.Status.IGNORED == status || JUnitResults.Status.STOPPED == status)
+      {
+        continue;
+      }
+
+      boolean failed = JUnitResults.Status.FAILED == status || JUnitResults.Status.TIMED_OUT == status;
+      increment(outcome.getName() + ".runs");
+      if(failed)
+      {
+        increment(outcome.getName() + ".failures");
+      }
+    }
+  }
+
+  private void increment(String key)
+  {
+    testHistory.setProperty(key, "" + (Integer.parseInt(testHistory.getProperty(key, "0")) + 1));
+  }
+
+  /** The names of the @Test methods in a test file, in the order they are written */
+  public static List<String> findTestNames(File testFile)
   {
+    List<String> names = new ArrayList<>();
+    try
+    {
+      String source = new String(Files.readAllBytes(testFile.toPath()));
+      Matcher test = Pattern.compile("@Test\\b[^;{]*?\\bvoid\\s+(\\w+)\\s*\\(").matcher(source);
+      while(test.find())
+      {
+        names.add(test.group(1));
+      }
+    }
+    catch(Exception e)
+    {
+      e.printStackTrace();
+    }
+    return names;
+  }
 
+  public void cleanup()
+  {
+    if(null != testHistoryFile)
+    {
+      try(OutputStream out = new FileOutputStream(testHistoryFile))
+      {
+        testHistory.store(out, "JUnitGrader test history");
+      }
+      catch(Exception e)
+      {
+        e.printStackTrace();
+      }
+    }
   }
 
   public void beforeCompile(JavaRunner jr, File dir)
@@ -60,12 +310,32 @@ public class JUnitGrader extends JEMGrader implements Callable<Integer>
 
   public void beforeExecute(JavaRunner jr, File dir)
   {
+    if(jr instanceof JUnitRunner)
+    {
+      // JUnitRunner runs the test class itself
+      return;
+    }
+
     // Reset the JavaRunner object so that it runs the JUnit program
     jr.setFilename("org.junit.runner.JUnitCore " + getFileToCompile());
   }
 
   public void afterExecute(JavaRunner jr, File dir)
   {
+    results = null;
+    if(jr instanceof JUnitRunner)
+    {
+      results = ((JUnitRunner)jr).getResults();
+      if(null != results && null != testHistoryFile && recordedRunners.add(jr))
+      {
+        recordTestHistory(results);
+      }
+      this.passed = "" + (null == results ? 0 : results.getPassed());
+      this.failed = null == results ? 0 : results.getFailed();
+      this.percent = null == results ? 0 : results.getPercentPassed();
+      return;
+    }
+
     int numSuccess = 0;
     int numFail = 0;
     int passPercent = 0;
@@ -117,6 +387,7 @@ public class JUnitGrader extends JEMGrader implements Callable<Integer>
 
   public void afterCompileError(JavaRunner jr, File dir)
   {
+    this.results = null;
     this.passed = "C";
     this.failed = -1;
     this.percent = -1;
@@ -124,6 +395,7 @@ public class JUnitGrader extends JEMGrader implements Callable<Integer>
 
   public void afterTimeoutError(JavaRunner jr, File dir)
   {
+    this.results = null;
     this.passed = "T";
     this.failed = -1;
     this.percent = -1;
@@ -136,6 +408,11 @@ public class JUnitGrader extends JEMGrader implements Callable<Integer>
 
   @Override
   public Integer call() throws Exception {
+    if(!isInProcess() && (testTimeout > 0 || testColumns || testJobs > 1 || platform || null != testHistoryFile || maxFailures > 0))
+    {
+      // only the in-process runner sees each test method
+      throw new IllegalArgumentException("--test-timeout, --test-columns, --test-jobs, --junit-platform, --test-history and --max-failures need the " + IN_PROCESS_BACKEND + " backend");
+    }
     return go();
   }
 
@@ -0,0 +1,77 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Creates JUnit 4 RunListeners without compiling the grader against junit.
+ *
+ * RunListener is a class, not an interface, so a java.lang.reflect.Proxy can't stand in
+ * for one. Instead a small subclass is generated (see ClassRewriter.forwardingSubclass())
+ * that passes each event's name and argument to a BiConsumer.
+ *
+ * The subclass is defined once for each copy of junit that is loaded, and is only kept
+ * as long as that copy is.
+ */
+public class JUnitListener {
+  public static final String TEST_STARTED = "testStarted";
+  public static final String TEST_FINISHED = "testFinished";
+  public static final String TEST_FAILURE = "testFailure";
+  public static final String TEST_ASSUMPTION_FAILURE = "testAssumptionFailure";
+  public static final String TEST_IGNORED = "testIgnored";
+
+  private static final String RUN_LISTENER = "org/junit/runner/notification/RunListener";
+  private static final String LISTENER = "org/junit/runner/notification/JEMGraderListener";
+  private static final String DESCRIPTION = "(Lorg/junit/runner/Description;)V";
+  private static final String FAILURE = "(Lorg/junit/runner/notification/Failure;)V";
+
+  // The subclass for each copy of RunListener. The subclass refers to RunListener, so a map keyed
+  // by RunListener would keep every copy of junit (and its class loader) for the whole run.
+  private static final ClassValue<Class<?>> LISTENERS = new ClassValue<Class<?>>() {
+    @Override
+    protected Class<?> computeValue(Class<?> runListener) {
+      try {
+        return MethodHandles.privateLookupIn(runListener, MethodHandles.lookup()).defineClass(generate());
+      } catch (ReflectiveOperationException e) {
+        throw new UndeclaredThrowableException(e);
+      }
+    }
+  };
+
+  /**
+   * Create a RunListener for the copy of junit that the specified class loader can see
+   *
+   * @param events Called with the name of each event (ex: TEST_STARTED) and its Description or Failure
+   */
+  public static Object create(ClassLoader loader, BiConsumer<String, Object> events) throws ReflectiveOperationException {
+    Class<?> runListener = Class.forName(RUN_LISTENER.replace('/', '.'), false, loader);
+
+    Class<?> listener;
+    try {
+      // one thread at a time, so the subclass is only defined once
+      synchronized (LISTENERS) {
+        listener = LISTENERS.get(runListener);
+      }
+    } catch (UndeclaredThrowableException e) {
+      throw (ReflectiveOperationException) e.getCause();
+    }
+
+    return listener.getConstructor(BiConsumer.class).newInstance(events);
+  }
+
+  /** The class file of a RunListener that forwards every test event to a BiConsumer */
+  private static byte[] generate() throws ClassNotFoundException {
+    ClassRewriter rewriter = ClassRewriter.get();
+    if (null == rewriter) {
+      throw new ClassNotFoundException("BytecodeRewriter (see ClassRewriter)");
+    }
+
+    Map<String, String> events = new LinkedHashMap<>();
+    events.put(TEST_STARTED, DESCRIPTION);
+    events.put(TEST_FINISHED, DESCRIPTION);
+    events.put(TEST_FAILURE, FAILURE);
+    events.put(TEST_ASSUMPTION_FAILURE, FAILURE);
+    events.put(TEST_IGNORED, DESCRIPTION);
+    return rewriter.forwardingSubclass(LISTENER, RUN_LISTENER, events);
+  }
+}
@@ -0,0 +1,166 @@
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * Runs a test class with the JUnit Platform Launcher (JUnit 5).
+ *
+ * The launcher and its engines (Jupiter for JUnit 5 tests, Vintage for JUnit 4 tests)
+ * are loaded from the jars in the test folder, and are called through reflection so
+ * the grader doesn't need them on its own classpath. Results are collected by a
+ * java.lang.reflect.Proxy for TestExecutionListener into the same JUnitResults that
+ * JUnit 4 tests produce.
+ */
+public class JUnitPlatform {
+  private static final String PLATFORM = "org.junit.platform.";
+
+  /**
+   * Run every test in the test class and collect the outcomes
+   *
+   * JUnitResults.setOrder() isn't used, Jupiter decides the order of the tests
+   * (see @TestMethodOrder).
+   *
+   * @param results Where the outcomes are collected
+   * @param threads How many tests Jupiter can run at the same time
+   */
+  public static void run(Class<?> testClass, JUnitResults results, int threads) throws ReflectiveOperationException {
+    ClassLoader loader = testClass.getClassLoader();
+    Class<?> builderClass = Class.forName(PLATFORM + "launcher.core.LauncherDiscoveryRequestBuilder", true, loader);
+    Class<?> selectorClass = Class.forName(PLATFORM + "engine.DiscoverySelector", true, loader);
+    Class<?> selectorsClass = Class.forName(PLATFORM + "engine.discovery.DiscoverySelectors", true, loader);
+    Class<?> requestClass = Class.forName(PLATFORM + "launcher.LauncherDiscoveryRequest", true, loader);
+    Class<?> factoryClass = Class.forName(PLATFORM + "launcher.core.LauncherFactory", true, loader);
+    Class<?> launcherClass = Class.forName(PLATFORM + "launcher.Launcher", true, loader);
+    Class<?> listenerClass = Class.forName(PLATFORM + "launcher.TestExecutionListener", true, loader);
+    Class<?> planClass = Class.forName(PLATFORM + "launcher.TestPlan", true, loader);
+    Class<?> identifierClass = Class.forName(PLATFORM + "launcher.TestIdentifier", true, loader);
+
+    Object selectors = Array.newInstance(selectorClass, 1);
+    Array.set(selectors, 0, selectorsClass.getMethod("selectClass", Class.class).invoke(null, testClass));
+
+    Object builder = builderClass.getMethod("request").invoke(null);
+    builderClass.getMethod("selectors", selectors.getClass()).invoke(builder, selectors);
+
+    Map<String, String> configuration = new LinkedHashMap<>();
+    if (threads > 1) {
+      // classes and methods marked @Execution(SAME_THREAD) or @Isolated still run one at a time
+      configuration.put("junit.jupiter.execution.parallel.enabled", "true");
+      configuration.put("junit.jupiter.execution.parallel.mode.default", "concurrent");
+      configuration.put("junit.jupiter.execution.parallel.config.strategy", "fixed");
+      configuration.put("junit.jupiter.execution.parallel.config.fixed.parallelism", "" + threads);
+    }
+    for (Map.Entry<String, String> parameter : configuration.entrySet()) {
+      builderClass.getMethod("configurationParameter", String.class, String.class)
+          .invoke(builder, parameter.getKey(), parameter.getValue());
+    }
+    Object request = builderClass.getMethod("build").invoke(builder);
+
+    Listener events = new Listener(results);
+    Object listeners = Array.newInstance(listenerClass, 1);
+    Array.set(listeners, 0, Proxy.newProxyInstance(listenerClass.getClassLoader(), new Class<?>[] { listenerClass },
+        events));
+
+    Object launcher = factoryClass.getMethod("create").invoke(null);
+    launcherClass.getMethod("execute", requestClass, listeners.getClass()).invoke(launcher, request, listeners);
+
+    // the launcher's TestPlan may be a subclass that isn't public, so use TestPlan's methods
+    if (null != events.testPlan) {
+      Method getChildren = planClass.getMethod("getChildren", identifierClass);
+      for (Object root : (Set<?>) planClass.getMethod("getRoots").invoke(events.testPlan)) {
+        collect(results, events, getChildren, root, null, false);
+      }
+    }
+  }
+
+  /** Add an outcome for every test under the specified TestIdentifier (in the order the test plan lists them) */
+  private static void collect(JUnitResults results, Listener events, Method getChildren, Object identifier,
+      String parentFailure, boolean parentSkipped) throws ReflectiveOperationException {
+    String id = (String) call(identifier, "getUniqueId");
+    String failure = results.getClassFailure(id, parentFailure);
+    boolean skipped = parentSkipped || events.skipped.contains(id);
+
+    if ((Boolean) call(identifier, "isTest")) {
+      results.addOutcome(id, nameOf(identifier), failure, skipped);
+      return;
+    }
+
+    for (Object child : (Set<?>) getChildren.invoke(events.testPlan, identifier)) {
+      collect(results, events, getChildren, child, failure, skipped);
+    }
+  }
+
+  /** The test's method name (or its display name if it isn't a method) */
+  private static String nameOf(Object identifier) throws ReflectiveOperationException {
+    Optional<?> source = (Optional<?>) call(identifier, "getSource");
+    if (source.isPresent() && source.get().getClass().getSimpleName().equals("MethodSource")) {
+      return (String) call(source.get(), "getMethodName");
+    }
+    return (String) call(identifier, "getDisplayName");
+  }
+
+  private static Object call(Object target, String method) throws ReflectiveOperationException {
+    return target.getClass().getMethod(method).invoke(target);
+  }
+
+  /** Records the events of a TestExecutionListener in JUnitResults */
+  private static class Listener implements InvocationHandler {
+    private JUnitResults results;
+    private volatile Object testPlan;
+
+    // Containers (ex: classes) that were skipped, so none of their tests were reported
+    private Set<String> skipped = Collections.synchronizedSet(new HashSet<>());
+
+    Listener(JUnitResults results) {
+      this.results = results;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "testPlanExecutionStarted":
+          testPlan = args[0];
+          return null;
+        case "executionStarted":
+          if ((Boolean) call(args[0], "isTest")) {
+            results.started(call(args[0], "getUniqueId"), nameOf(args[0]));
+          }
+          return null;
+        case "executionSkipped":
+          if ((Boolean) call(args[0], "isTest")) {
+            results.ignored(call(args[0], "getUniqueId"), nameOf(args[0]));
+          }
+          else {
+            skipped.add((String) call(args[0], "getUniqueId"));
+          }
+          return null;
+        case "executionFinished":
+          finished(args[0], args[1]);
+          return null;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        case "toString":
+          return "JUnitPlatform.Listener";
+        default:
+          return null; // the rest of the events don't matter
+      }
+    }
+
+    /** Record a finished test, or the failure of a container that keeps its tests from running */
+    private void finished(Object identifier, Object result) throws ReflectiveOperationException {
+      Object id = call(identifier, "getUniqueId");
+      String status = call(result, "getStatus").toString();
+      boolean isTest = (Boolean) call(identifier, "isTest");
+      if (!isTest && "ABORTED".equals(status)) {
+        skipped.add((String) id); // ex: an assumption failed in @BeforeAll
+      }
+      else if (!"SUCCESSFUL".equals(status)) {
+        Optional<?> throwable = (Optional<?>) call(result, "getThrowable");
+        results.failed(id, String.valueOf(throwable.orElse(null)), "ABORTED".equals(status));
+      }
+
+      if (isTest) {
+        results.finished(id, nameOf(identifier));
+      }
+    }
+  }
+}
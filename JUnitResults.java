@@ -0,0 +1,449 @@
+import java.lang.annotation.Annotation;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The outcome of every test in a JUnit 4 test class.
+ *
+ * The tests are run with JUnitCore.run() through reflection, so the grader doesn't
+ * need junit on its own classpath. JUnit is loaded from whatever class loader loaded
+ * the test class (see JUnitRunner), and its events are collected by a generated
+ * RunListener (see JUnitListener).
+ *
+ * The test methods of a class can be run on several threads at once. Test classes
+ * annotated with @FixMethodOrder or @NotThreadSafe (from any package), and test methods
+ * annotated with @NotThreadSafe, are run one at a time.
+ *
+ * For quick triage runs, the test methods can be run in a different order (ex: the
+ * ones most likely to fail first), and the rest of the tests can be stopped once
+ * enough of them have failed.
+ */
+public class JUnitResults {
+  public enum Status { PASSED, FAILED, TIMED_OUT, IGNORED, STOPPED }
+
+  /** The outcome of one test method */
+  public static class TestOutcome {
+    private String name;
+    private Status status;
+    private String failure;
+    private long duration;
+
+    public TestOutcome(String name, Status status, String failure, long duration) {
+      this.name = name;
+      this.status = status;
+      this.failure = failure;
+      this.duration = duration;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public Status getStatus() {
+      return status;
+    }
+
+    /** Why the test failed (null if it didn't) */
+    public String getFailure() {
+      return failure;
+    }
+
+    /** How many milliseconds the test took (-1 if it wasn't run) */
+    public long getDuration() {
+      return duration;
+    }
+  }
+
+  /** Told when each test starts and finishes, on the thread running the test */
+  public interface TestWatcher {
+    /** @param stop true if the test should be stopped right away (see setMaxFailures()) */
+    void started(String name, boolean stop);
+
+    /** @return true if the test ran out of time */
+    boolean finished(String name);
+  }
+
+  /** A test that has started but not finished */
+  private static class RunningTest {
+    long start = System.nanoTime();
+    String failure;
+    boolean skipped;
+    boolean stopped;
+  }
+
+  private List<TestOutcome> outcomes = new ArrayList<>();
+
+  // Outcomes of the tests that have finished, by their Description
+  private Map<Object, TestOutcome> finished = new HashMap<>();
+  private Map<Object, RunningTest> running = new HashMap<>();
+
+  // Failures that weren't for a single test (ex: @BeforeClass threw an exception)
+  private Map<Object, String> classFailures = new HashMap<>();
+
+  private TestWatcher watcher;
+  private Comparator<String> order;
+  private int maxFailures;
+  private int failures;
+
+  /**
+   * @param watcher Told as each test starts and finishes (can be null)
+   */
+  public JUnitResults(TestWatcher watcher) {
+    this.watcher = watcher;
+  }
+
+  /** Run the test methods of a class in this order (by name), unless it has @FixMethodOrder */
+  public void setOrder(Comparator<String> order) {
+    this.order = order;
+  }
+
+  /**
+   * Stop the rest of the tests once this many have failed. The watcher is told to stop
+   * them as they start, and they are recorded as STOPPED.
+   *
+   * @param maxFailures Use 0 for no limit
+   */
+  public void setMaxFailures(int maxFailures) {
+    this.maxFailures = maxFailures;
+  }
+
+  /** Run every test in the test class and collect the outcomes */
+  public static JUnitResults run(Class<?> testClass) throws ReflectiveOperationException {
+    JUnitResults results = new JUnitResults(null);
+    results.run(testClass, 1);
+    return results;
+  }
+
+  /**
+   * Run every test in the test class with JUnit 4 and collect the outcomes
+   *
+   * @param threads How many test methods can run at the same time
+   */
+  public void run(Class<?> testClass, int threads) throws ReflectiveOperationException {
+    ClassLoader loader = testClass.getClassLoader();
+    Class<?> requestClass = Class.forName("org.junit.runner.Request", true, loader);
+    Class<?> runnerClass = Class.forName("org.junit.runner.Runner", true, loader);
+    Class<?> coreClass = Class.forName("org.junit.runner.JUnitCore", true, loader);
+    Class<?> listenerClass = Class.forName("org.junit.runner.notification.RunListener", true, loader);
+    @SuppressWarnings("unchecked")
+    Class<? extends Annotation> ignore = (Class<? extends Annotation>) Class.forName("org.junit.Ignore", true, loader);
+
+    Object request = requestClass.getMethod("aClass", Class.class).invoke(null, testClass);
+    if (null != order && !hasAnnotation(testClass.getAnnotations(), "FixMethodOrder")) {
+      Comparator<Object> byName = (a, b) -> order.compare(safeNameOf(a), safeNameOf(b));
+      request = requestClass.getMethod("sortWith", Comparator.class).invoke(request, byName);
+    }
+    Object runner = requestClass.getMethod("getRunner").invoke(request);
+    Object description = runnerClass.getMethod("getDescription").invoke(runner);
+
+    if (threads > 1 && !hasAnnotation(testClass.getAnnotations(), "FixMethodOrder", "NotThreadSafe")) {
+      schedule(runner, description, threads);
+    }
+
+    Object core = coreClass.getConstructor().newInstance();
+    coreClass.getMethod("addListener", listenerClass).invoke(core, JUnitListener.create(loader, this::event));
+    coreClass.getMethod("run", runnerClass).invoke(core, runner);
+
+    collect(description, null, ignore);
+  }
+
+  /** Run the children of a ParentRunner (the test methods of a class) on a pool of threads */
+  private static void schedule(Object runner, Object description, int threads) throws ReflectiveOperationException {
+    Method setScheduler;
+    Class<?> schedulerClass = Class.forName("org.junit.runners.model.RunnerScheduler", true,
+        runner.getClass().getClassLoader());
+    try {
+      setScheduler = runner.getClass().getMethod("setScheduler", schedulerClass);
+    } catch (NoSuchMethodException e) {
+      return; // not a ParentRunner, so there are no children to run in parallel
+    }
+
+    // the children are scheduled in the same order as they are described
+    List<Boolean> serial = new ArrayList<>();
+    for (Object child : (List<?>) description.getClass().getMethod("getChildren").invoke(description)) {
+      Collection<?> annotations = (Collection<?>) child.getClass().getMethod("getAnnotations").invoke(child);
+      serial.add(hasAnnotation(annotations.toArray(new Annotation[0]), "NotThreadSafe"));
+    }
+
+    Object scheduler = Proxy.newProxyInstance(schedulerClass.getClassLoader(), new Class<?>[] { schedulerClass },
+        new ParallelScheduler(threads, serial));
+    setScheduler.invoke(runner, scheduler);
+  }
+
+  /** True if one of the annotations has one of the simple names */
+  private static boolean hasAnnotation(Annotation[] annotations, String... names) {
+    for (Annotation annotation : annotations) {
+      if (Arrays.asList(names).contains(annotation.annotationType().getSimpleName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A JUnit RunnerScheduler that runs children on a pool of threads, except for the ones
+   * that aren't thread safe, which run one at a time once the others have finished.
+   *
+   * The pool's threads are started by the program's thread, so they belong to the program
+   * (its budget, streams and guard).
+   */
+  private static class ParallelScheduler implements InvocationHandler {
+    private int threads;
+    private List<Boolean> serial;
+    private int next;
+
+    private ExecutorService pool;
+    private List<Future<?>> running = new ArrayList<>();
+    private List<Runnable> later = new ArrayList<>();
+
+    ParallelScheduler(int threads, List<Boolean> serial) {
+      this.threads = threads;
+      this.serial = serial;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "schedule":
+          schedule((Runnable) args[0]);
+          return null;
+        case "finished":
+          finished();
+          return null;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return "ParallelScheduler(" + threads + ")";
+      }
+    }
+
+    private void schedule(Runnable child) {
+      if (next < serial.size() && serial.get(next++)) {
+        later.add(child);
+        return;
+      }
+
+      if (null == pool) {
+        pool = Executors.newFixedThreadPool(threads, r -> {
+          Thread thread = new Thread(r, "test");
+          thread.setDaemon(true);
+          return thread;
+        });
+      }
+      running.add(pool.submit(child));
+    }
+
+    private void finished() {
+      try {
+        for (Future<?> child : running) {
+          child.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return; // the program is being stopped
+      } catch (ExecutionException e) {
+        e.printStackTrace();
+      } finally {
+        if (null != pool) {
+          pool.shutdown();
+        }
+      }
+
+      for (Runnable child : later) {
+        child.run();
+      }
+    }
+  }
+
+  /** Record a test event (see JUnitListener) */
+  private void event(String event, Object argument) {
+    try {
+      if (JUnitListener.TEST_FAILURE.equals(event) || JUnitListener.TEST_ASSUMPTION_FAILURE.equals(event)) {
+        Object description = argument.getClass().getMethod("getDescription").invoke(argument);
+        String failure = String.valueOf(argument.getClass().getMethod("getException").invoke(argument));
+        failed(description, failure, JUnitListener.TEST_ASSUMPTION_FAILURE.equals(event));
+        return;
+      }
+
+      String name = nameOf(argument);
+      if (JUnitListener.TEST_STARTED.equals(event)) {
+        started(argument, name);
+      }
+      else if (JUnitListener.TEST_FINISHED.equals(event)) {
+        finished(argument, name);
+      }
+      else if (JUnitListener.TEST_IGNORED.equals(event)) {
+        ignored(argument, name);
+      }
+    } catch (ReflectiveOperationException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Record that a test started (called on the thread running the test)
+   *
+   * @param test What the test framework uses to identify the test
+   */
+  void started(Object test, String name) {
+    RunningTest running = new RunningTest();
+    synchronized (this) {
+      running.stopped = maxFailures > 0 && failures >= maxFailures;
+      this.running.put(test, running);
+    }
+    if (null != watcher) {
+      watcher.started(name, running.stopped);
+    }
+  }
+
+  /** Record that a test (or a whole class, if it hasn't started) failed */
+  synchronized void failed(Object test, String failure, boolean assumption) {
+    RunningTest running = this.running.get(test);
+    if (null == running) {
+      classFailures.put(test, failure);
+    }
+    else if (assumption) {
+      running.skipped = true;
+    }
+    else if (null == running.failure) {
+      running.failure = failure;
+    }
+  }
+
+  /** Record that a test finished (called on the thread running the test) */
+  void finished(Object test, String name) {
+    boolean timedOut = null != watcher && watcher.finished(name);
+    finished(test, name, timedOut);
+  }
+
+  /** Record a test that was skipped */
+  synchronized void ignored(Object test, String name) {
+    finished.put(test, new TestOutcome(name, Status.IGNORED, null, -1));
+  }
+
+  private synchronized void finished(Object description, String name, boolean timedOut) {
+    RunningTest test = running.remove(description);
+    if (null == test) {
+      return;
+    }
+
+    Status status = Status.PASSED;
+    if (test.stopped) {
+      status = Status.STOPPED;
+    }
+    else if (timedOut) {
+      status = Status.TIMED_OUT;
+    }
+    else if (null != test.failure) {
+      status = Status.FAILED;
+    }
+    else if (test.skipped) {
+      status = Status.IGNORED;
+    }
+    if (Status.FAILED == status || Status.TIMED_OUT == status) {
+      failures++;
+    }
+    long duration = (System.nanoTime() - test.start) / 1000000;
+    finished.put(description, new TestOutcome(name, status, test.failure, duration));
+  }
+
+  /** Add an outcome for every test under the specified Description (in the order JUnit lists them) */
+  private void collect(Object description, String parentFailure, Class<? extends Annotation> ignore)
+      throws ReflectiveOperationException {
+    Class<?> descriptionClass = description.getClass();
+    String failure = getClassFailure(description, parentFailure);
+
+    if ((Boolean) descriptionClass.getMethod("isTest").invoke(description)) {
+      boolean ignored = null != descriptionClass.getMethod("getAnnotation", Class.class).invoke(description, ignore);
+      addOutcome(description, nameOf(description), failure, ignored);
+      return;
+    }
+
+    for (Object child : (List<?>) descriptionClass.getMethod("getChildren").invoke(description)) {
+      collect(child, failure, ignore);
+    }
+  }
+
+  /** Why a class (or anything else that contains tests) failed, or parentFailure if it didn't fail on its own */
+  String getClassFailure(Object container, String parentFailure) {
+    return classFailures.containsKey(container) ? classFailures.get(container) : parentFailure;
+  }
+
+  /**
+   * Add a test's outcome to the list (tests are listed in the order they are added)
+   *
+   * @param failure Why the test's class failed (used if the test never finished)
+   * @param ignored Was the test skipped (used if the test never finished)
+   */
+  void addOutcome(Object test, String name, String failure, boolean ignored) {
+    TestOutcome outcome = finished.get(test);
+    if (null == outcome) {
+      // never finished, because the whole class failed or was skipped
+      if (null == failure && ignored) {
+        outcome = new TestOutcome(name, Status.IGNORED, null, -1);
+      }
+      else {
+        outcome = new TestOutcome(name, Status.FAILED, null == failure ? "Not run" : failure, -1);
+      }
+    }
+    outcomes.add(outcome);
+  }
+
+  /** The test's method name (or its display name if it isn't a method) */
+  private static String nameOf(Object description) throws ReflectiveOperationException {
+    String name = (String) description.getClass().getMethod("getMethodName").invoke(description);
+    if (null == name) {
+      name = (String) description.getClass().getMethod("getDisplayName").invoke(description);
+    }
+    return name;
+  }
+
+  private static String safeNameOf(Object description) {
+    try {
+      return nameOf(description);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public List<TestOutcome> getOutcomes() {
+    return outcomes;
+  }
+
+  /** The outcome of the test with the specified name (null if there isn't one) */
+  public TestOutcome getOutcome(String name) {
+    for (TestOutcome outcome : outcomes) {
+      if (outcome.getName().equals(name)) {
+        return outcome;
+      }
+    }
+    return null;
+  }
+
+  public int getPassed() {
+    return count(Status.PASSED);
+  }
+
+  /** The number of tests that failed or ran out of time */
+  public int getFailed() {
+    return count(Status.FAILED) + count(Status.TIMED_OUT);
+  }
+
+  /** The percent of the tests that were run (not ignored) that passed */
+  public int getPercentPassed() {
+    int total = getPassed() + getFailed();
+    return 0 == total ? 0 : (int) (getPassed() * 1.0 / total * 100);
+  }
+
+  private int count(Status status) {
+    int count = 0;
+    for (TestOutcome outcome : outcomes) {
+      if (status == outcome.getStatus()) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,249 @@
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Comparator;
+import java.util.concurrent.*;
+
+/**
+ * Runs a student's JUnit 4 tests inside the grader's JVM (see InProcessRunner).
+ *
+ * Instead of output to parse, the outcome of every test is available from
+ * getResults() once the tests have run. Anything the tests print still goes to
+ * output.log and error.log.
+ *
+ * With a test timeout, each test method gets its own RunBudget (see setTestTimeout()),
+ * so a test that runs too long fails on its own instead of timing out the whole run.
+ *
+ * With more than one test thread (see setTestThreads()), the test methods run at the
+ * same time and what each test prints is written to the logs when it finishes, so
+ * the output of different tests isn't mixed together.
+ */
+public class JUnitRunner extends InProcessRunner
+{
+  private volatile JUnitResults results;
+  private int testTimeout;
+  private int testThreads = 1;
+  private boolean platform;
+  private Comparator<String> testOrder;
+  private int maxFailures;
+
+  // Stops test methods that exceed the test timeout (shared by every runner)
+  private static final ScheduledExecutorService TEST_TIMERS = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread timer = new Thread(r, "test-timeouts");
+    timer.setDaemon(true);
+    return timer;
+  });
+
+  /** Constructor
+   *  @param File path The folder of code to be compiled
+   *  @param String testClassName The name of the test class to be compiled/run
+   *  @param int timeout The number of milliseconds to wait for the tests to run before timing out. Use 0 for no timeout.
+   *  @param ClassLoader parent The class loader shared by every student, which must be able to load junit
+   */
+  public JUnitRunner(File path, String testClassName, int timeout, ClassLoader parent)
+  {
+    super(path, testClassName, timeout, parent);
+  }
+
+  /** Limit how long each test method can run
+   *  @param int testTimeout The number of milliseconds each test can run for. Use 0 for no limit.
+   */
+  public void setTestTimeout(int testTimeout)
+  {
+    this.testTimeout = testTimeout;
+  }
+
+  /** Run several test methods at the same time
+   *  @param int testThreads How many test methods can run at the same time
+   */
+  public void setTestThreads(int testThreads)
+  {
+    this.testThreads = testThreads;
+  }
+
+  /** Run the tests with the JUnit Platform launcher (JUnit 5) instead of JUnit 4's JUnitCore
+   *  @param boolean platform true to use the launcher (see JUnitPlatform)
+   */
+  public void setPlatform(boolean platform)
+  {
+    this.platform = platform;
+  }
+
+  /** Run the test methods in this order (JUnit 4 only, see JUnitResults.setOrder()) */
+  public void setTestOrder(Comparator<String> testOrder)
+  {
+    this.testOrder = testOrder;
+  }
+
+  /** Stop the rest of the tests once this many have failed
+   *  @param int maxFailures Use 0 for no limit
+   */
+  public void setMaxFailures(int maxFailures)
+  {
+    this.maxFailures = maxFailures;
+  }
+
+  /** The outcome of each test, or null if the tests could not be run */
+  public JUnitResults getResults()
+  {
+    return results;
+  }
+
+  /** Run the test class with JUnitCore (or the JUnit Platform launcher) instead of calling main */
+  @Override
+  protected void invokeMain(StudentClassLoader loader, String testClassName, String[] args, PrintStream err)
+  {
+    results = null;
+
+    Class<?> testClass;
+    try
+    {
+      testClass = Class.forName(testClassName, false, loader);
+    }
+    catch(ClassNotFoundException | LinkageError e)
+    {
+      err.println("Error: Could not find or load test class " + testClassName);
+      err.println("Caused by: " + e);
+      return;
+    }
+
+    try
+    {
+      JUnitResults.TestWatcher watcher = null;
+      if(testTimeout > 0 || testThreads > 1 || maxFailures > 0)
+      {
+        watcher = new TestIsolation(loader);
+      }
+
+      JUnitResults testResults = new JUnitResults(watcher);
+      testResults.setOrder(testOrder);
+      testResults.setMaxFailures(maxFailures);
+      if(platform)
+      {
+        JUnitPlatform.run(testClass, testResults, testThreads);
+      }
+      else
+      {
+        testResults.run(testClass, testThreads);
+      }
+      results = testResults;
+    }
+    catch(InvocationTargetException e)
+    {
+      if(wasStopped())
+      {
+        return;
+      }
+      err.print("Exception in thread \"main\" ");
+      e.getCause().printStackTrace(err);
+    }
+    catch(ReflectiveOperationException e)
+    {
+      err.println("Error: Could not run " + (platform ? "the JUnit Platform" : "JUnit 4") + " (are its jars in the test folder?)");
+      err.println("Caused by: " + e);
+    }
+  }
+
+  /** Gives each test method its own budget that expires after the test timeout, and its own output when tests run in parallel */
+  private class TestIsolation implements JUnitResults.TestWatcher
+  {
+    private StudentClassLoader loader;
+
+    // The running test's budget, timer and output, for each thread running a test
+    private ThreadLocal<RunBudget> testBudget = new ThreadLocal<>();
+    private ThreadLocal<ScheduledFuture<?>> expiry = new ThreadLocal<>();
+    private ThreadLocal<ByteArrayOutputStream[]> output = new ThreadLocal<>();
+    private ThreadLocal<StreamMultiplexer.Streams> programStreams = new ThreadLocal<>();
+
+    TestIsolation(StudentClassLoader loader)
+    {
+      this.loader = loader;
+    }
+
+    public void started(String name, boolean stop)
+    {
+      StreamMultiplexer.Streams program = StreamMultiplexer.current();
+      if(testThreads > 1 && null != program)
+      {
+        ByteArrayOutputStream[] testOutput = { new ByteArrayOutputStream(), new ByteArrayOutputStream() };
+        output.set(testOutput);
+        programStreams.set(program);
+        StreamMultiplexer.bind(program.split(testOutput[0], testOutput[1]));
+      }
+
+      if(testTimeout > 0 || stop)
+      {
+        startTimer(stop);
+      }
+    }
+
+    /** @param boolean stop true to stop the test right away instead of after the test timeout */
+    private void startTimer(boolean stop)
+    {
+      RunBudget budget = new RunBudget(getBudget());
+      budget.onExpire(loader::openGate);
+      budget.bind();
+      testBudget.set(budget);
+
+      if(stop)
+      {
+        // the test throws RunBudget.ExceededError as soon as it gets to the test class's code
+        budget.expire();
+        return;
+      }
+
+      Thread test = Thread.currentThread();
+      expiry.set(TEST_TIMERS.schedule(() -> {
+        budget.expire();
+        test.interrupt();
+      }, testTimeout, TimeUnit.MILLISECONDS));
+    }
+
+    public boolean finished(String name)
+    {
+      ByteArrayOutputStream[] testOutput = output.get();
+      if(null != testOutput)
+      {
+        // send the test's output to the program's streams all at once
+        StreamMultiplexer.Streams program = programStreams.get();
+        StreamMultiplexer.bind(program);
+        programStreams.remove();
+        output.remove();
+        try
+        {
+          program.write(testOutput[0].toByteArray(), testOutput[1].toByteArray());
+        }
+        catch(IOException e)
+        {
+          e.printStackTrace();
+        }
+      }
+
+      return stopTimer();
+    }
+
+    /** @return true if the test ran out of time */
+    private boolean stopTimer()
+    {
+      RunBudget budget = testBudget.get();
+      if(null == budget)
+      {
+        return false;
+      }
+
+      if(null != expiry.get())
+      {
+        expiry.get().cancel(false);
+      }
+      getBudget().bind();
+      testBudget.remove();
+      expiry.remove();
+
+      boolean timedOut = budget.isExpired() && null == budget.getExitStatus() && !getBudget().isExpired();
+      if(timedOut)
+      {
+        Thread.interrupted(); // don't interrupt the next test
+      }
+      return timedOut;
+    }
+  }
+}
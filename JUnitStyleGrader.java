@@ -4,7 +4,8 @@ import java.util.*;
 
 public class JUnitStyleGrader extends JUnitGrader
 {
-  private String styleResult;
+  // Style results by student folder (beforeCompile can run for the next students before printResult)
+  private Map<File, String> styleResults = new HashMap<>();
   private File styleLog;
 
   public void printResultHeader()
@@ -14,15 +15,15 @@ public class JUnitStyleGrader extends JUnitGrader
 
   public void printResult(File dir)
   {
-    System.out.printf("%s, %s, %s, %d, %d%n", dir.getName().replaceAll("_" , " "), styleResult, passed, failed, percent);
+    System.out.printf("%s, %s, %s, %d, %d%n", dir.getName().replaceAll("_" , " "), styleResults.remove(dir), passed, failed, percent);
   }
 
   public void beforeCompile(JavaRunner jr, File dir)
   {
     super.beforeCompile(jr, dir);
 
-    //Run Style checker & set styleResult instance variable
-    styleResult = "?";
+    //Run Style checker & save this student's styleResult
+    String styleResult = "?";
     styleLog = new File(jr.pathTo("style.log"));
     try
     {
@@ -83,6 +84,7 @@ public class JUnitStyleGrader extends JUnitGrader
     {
       e.printStackTrace();
     }
+    styleResults.put(dir, styleResult);
   }
 
   public static void main(String[] args)
@@ -7,8 +7,13 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.Path;
 import java.io.File;
+import java.lang.ProcessBuilder.Redirect;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class JavaRunner implements Runnable
 {
@@ -40,10 +45,28 @@ public class JavaRunner implements Runnable
   private File compileLog;
   private File errorLog;
   private File outputLog;
-  private boolean timedout;
+  private volatile boolean timedout;
   private String policy;
 
-  private boolean threadLock;
+  // Class Data Sharing archive (and the classpath it was dumped with) for the child JVM
+  private File sharedArchive;
+  private List<String> sharedClasspath;
+
+  // Flags passed to the JVM that runs the program (see LaunchProfile)
+  private List<String> jvmFlags;
+
+  // The file the program reads as System.in (null for no input)
+  private File input;
+
+  // A runner for each input file, if the program is run once for each of them (see setCases())
+  private List<JavaRunner> cases;
+  private int caseJobs = 1;
+  private boolean caseHarness;
+
+  // How long a CaseHarness JVM has to start, on top of the cases' time limits
+  private static final int HARNESS_STARTUP = 2000;
+
+  private volatile boolean threadLock;
   private boolean threadRunning;
 
   // Identified if the last time the compile() method was called ended in a successful compiliation
@@ -72,6 +95,7 @@ public class JavaRunner implements Runnable
     this.limit = timeout;
     this.policy = policy;
     this.classpathFiles = new ArrayList<>();
+    this.jvmFlags = new ArrayList<>();
 
     this.compileLog = new File(pathTo("compile.log"));
     this.outputLog = new File(pathTo("output.log"));
@@ -92,6 +116,108 @@ public class JavaRunner implements Runnable
     this.policy = policy;
   }
 
+  /** Launch the program with a Class Data Sharing archive.
+   *  @param File archive The archive created by ClassDataSharing
+   *  @param List<String> sharedClasspath The classpath the archive was dumped with.
+   *                      These entries are put at the front of the classpath so the archive can be used.
+   */
+  public void setSharedArchive(File archive, List<String> sharedClasspath)
+  {
+    this.sharedArchive = archive;
+    this.sharedClasspath = sharedClasspath;
+  }
+
+  /** Add flags to the JVM that runs the program
+   *  @param List<String> flags the JVM flags (ex: -Xmx64m)
+   */
+  public void addJvmFlags(List<String> flags)
+  {
+    jvmFlags.addAll(flags);
+  }
+
+  /** Send a file to the program as System.in
+   *  @param File input the file to read, or null for no input
+   */
+  public void setInput(File input)
+  {
+    this.input = input;
+  }
+
+  public File getInput()
+  {
+    return input;
+  }
+
+  /** Run the program once for each input file (see setInput()) instead of once.
+   *
+   *  Each case has its own JavaRunner, with its own time limit, and writes to its own
+   *  logs: Name.output.log and Name.error.log for the input file Name.in. This runner's own
+   *  logs and timedOut() aren't used.
+   *
+   *  If the cases run one at a time (and usesCaseHarness()), they all run in one JVM
+   *  (see CaseHarness), so the JVM only starts once.
+   *
+   *  Call this after the classpath has been set up.
+   *
+   *  @param List<File> inputs The input file for each case
+   *  @param int jobs How many cases can run at the same time
+   */
+  public void setCases(List<File> inputs, int jobs)
+  {
+    cases = new ArrayList<>();
+    for(File caseInput : inputs)
+    {
+      JavaRunner runner = newCaseRunner();
+      runner.classpathFiles.addAll(classpathFiles);
+      runner.jvmFlags.addAll(jvmFlags);
+      runner.sharedArchive = sharedArchive;
+      runner.sharedClasspath = sharedClasspath;
+      runner.input = caseInput;
+
+      String name = caseInput.getName().replaceFirst("\\.in$", "");
+      runner.outputLog = new File(pathTo(name + ".output.log"));
+      runner.errorLog = new File(pathTo(name + ".error.log"));
+      cases.add(runner);
+    }
+    caseJobs = Math.max(1, jobs);
+    caseHarness = caseJobs == 1 && cases.size() > 1 && usesCaseHarness();
+  }
+
+  /** True if the cases can run in one JVM with CaseHarness (which wouldn't be allowed by a security policy) */
+  protected boolean usesCaseHarness()
+  {
+    return null == policy;
+  }
+
+  /** The runner for each case (in the order of setCases()), or null if the program is only run once */
+  public List<JavaRunner> getCases()
+  {
+    return cases;
+  }
+
+  /** A runner for one case, which runs the already compiled program the same way this one does (see setCases()) */
+  protected JavaRunner newCaseRunner()
+  {
+    return new JavaRunner(new File(path), filename, limit, policy);
+  }
+
+  /** The number of milliseconds the program can run for (0 for no limit) */
+  protected int getTimeout()
+  {
+    return limit;
+  }
+
+  public String getFilename()
+  {
+    return filename;
+  }
+
+  /** The classpath entries added to this runner (not including the code folder) */
+  public List<String> getClassPath()
+  {
+    return classpathFiles;
+  }
+
   public File getCompileLog()
   {
     return compileLog;
@@ -200,43 +326,190 @@ public class JavaRunner implements Runnable
 
     try
     {
-      String cp = path;
-      for(String cpFilename : classpathFiles)
+      if(null == cases)
       {
-        cp += File.pathSeparator + cpFilename;
+        launch();
       }
+      else
+      {
+        runCases();
+      }
+    }
+    catch(Exception e)
+    {
+      e.printStackTrace();
+    }
+    finally
+    {
+      timer.terminate();
+      threadRunning = false;
+      threadLock = false;
+    }
+  }
 
-      Runtime run = Runtime.getRuntime();
-
-      timer.start();
+  /** Run every case, caseJobs at a time, and wait for them to finish */
+  private void runCases() throws Exception
+  {
+    if(caseHarness)
+    {
+      runCaseHarness();
+      return;
+    }
 
-      String policy_flag = "";
-      if (null != this.policy) {
-        policy_flag="-Djava.security.manager -Djava.security.policy=\""+this.policy+"\"";
+    ExecutorService runners = Executors.newFixedThreadPool(Math.max(1, Math.min(caseJobs, cases.size())));
+    try
+    {
+      for(JavaRunner runner : cases)
+      {
+        runners.submit(() -> runner.execute(true));
       }
+    }
+    finally
+    {
+      runners.shutdown();
+    }
+    runners.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  /** Run the cases one after another in a CaseHarness JVM. If the harness stops early
+   *  (a case ran out of time, called System.exit or left threads running), a new one runs the rest of the cases.
+   */
+  private void runCaseHarness() throws Exception
+  {
+    File status = new File(pathTo("cases.status"));
+    String graderPath = new File(CaseHarness.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
 
-      String cmd = "java -cp " + cp + " " + policy_flag + " " + filename;
-      proc = run.exec(cmd);
+    String cp = path;
+    for(String cpFilename : classpathFiles)
+    {
+      cp += File.pathSeparator + cpFilename;
+    }
 
-      // Delete any output/error logs that the target program created on its own
-      Files.deleteIfExists(outputLog.toPath());
-      Files.deleteIfExists(errorLog.toPath());
+    int next = 0;
+    while(next < cases.size())
+    {
+      Files.deleteIfExists(status.toPath());
+
+      // the student's classes aren't on the JVM's classpath, the harness loads them again for each case
+      List<String> cmd = new ArrayList<>();
+      cmd.add("java");
+      cmd.addAll(jvmFlags);
+      cmd.add("-cp");
+      cmd.add(graderPath);
+      cmd.add("CaseHarness");
+      cmd.add("" + limit);
+      cmd.add(status.getPath());
+      cmd.add(cp);
+      cmd.add(filename);
+      cmd.add("" + next);
+      for(JavaRunner runner : cases.subList(next, cases.size()))
+      {
+        cmd.add(runner.input.getPath());
+        cmd.add(runner.outputLog.getPath());
+        cmd.add(runner.errorLog.getPath());
+      }
 
-      writeLines(outputLog.getPath(), proc.getInputStream());
-      writeLines(errorLog.getPath(), proc.getErrorStream());
+      ProcessBuilder builder = new ProcessBuilder(cmd);
+      builder.redirectOutput(Redirect.to(outputLog));
+      builder.redirectError(Redirect.to(errorLog));
+      proc = builder.start();
 
+      boolean killed = false;
+      if(limit > 0 && !proc.waitFor((long)limit * (cases.size() - next) + HARNESS_STARTUP, TimeUnit.MILLISECONDS))
+      {
+        proc.destroyForcibly();
+        killed = true;
+      }
       proc.waitFor();
+
+      // the status of each case the harness finished
+      boolean stopped = false; // the last case stopped the harness
+      List<String> finished = status.exists() ? Files.readAllLines(status.toPath()) : new ArrayList<>();
+      for(String line : finished)
+      {
+        String[] marker = line.split(" ");
+        if(Integer.parseInt(marker[0]) == next)
+        {
+          if("TIMEOUT".equals(marker[1]))
+          {
+            cases.get(next).timedout = true;
+            cases.get(next).writeTimeoutLog();
+          }
+          stopped = !"DONE".equals(marker[1]);
+          next++;
+        }
+      }
+
+      // the harness stopped during a case without saying why (ex: it was killed or crashed)
+      if(next < cases.size() && !stopped)
+      {
+        if(killed)
+        {
+          cases.get(next).timedout = true;
+          cases.get(next).writeTimeoutLog();
+        }
+        next++;
+      }
     }
-    catch(Exception e)
+  }
+
+  /** Runs the specified program in a new JVM and waits for it to finish.
+   *
+   *  Subclasses can override this to run the program some other way. They must call startTimer()
+   *  once the program has started.
+   */
+  protected void launch() throws Exception
+  {
+    String cp = path;
+    for(String cpFilename : classpathFiles)
     {
-      e.printStackTrace();
+      cp += File.pathSeparator + cpFilename;
     }
-    finally
+
+    String cds_flag = "";
+    if (null != sharedArchive)
     {
-      timer.terminate();
-      threadRunning = false;
-      threadLock = false;
+      cp = sharedClasspath();
+      cds_flag = "-XX:SharedArchiveFile=" + sharedArchive.getPath();
+    }
+
+    List<String> cmd = new ArrayList<>();
+    cmd.add("java");
+    cmd.addAll(jvmFlags);
+    if (!cds_flag.isEmpty()) {
+      cmd.add(cds_flag);
+    }
+    cmd.add("-cp");
+    cmd.add(cp);
+    if (null != this.policy) {
+      cmd.add("-Djava.security.manager");
+      cmd.add("-Djava.security.policy=" + this.policy);
+    }
+    cmd.addAll(Arrays.asList(filename.trim().split("\\s+")));
+
+    // Delete any output/error logs that the target program created on its own
+    Files.deleteIfExists(outputLog.toPath());
+    Files.deleteIfExists(errorLog.toPath());
+
+    // The logs are written by the OS, so a program can't block on a full pipe
+    ProcessBuilder builder = new ProcessBuilder(cmd);
+    builder.redirectOutput(Redirect.to(outputLog));
+    builder.redirectError(Redirect.to(errorLog));
+    if (null != input) {
+      builder.redirectInput(Redirect.from(input));
     }
+
+    startTimer();
+
+    proc = builder.start();
+
+    proc.waitFor();
+  }
+
+  /** Start timing the running program. The program will be stopped by timeout() if it exceeds the time limit. */
+  protected void startTimer()
+  {
+    timer.start();
   }
 
   /** Compiles the specified program
@@ -288,6 +561,31 @@ public class JavaRunner implements Runnable
     return wasLastCompileSuccessful;
   }
 
+  /** Build a classpath that starts with the entries the shared archive was dumped with.
+   *  Local copies of the shared jars are left out since the originals are already on the classpath.
+   *
+   *  @return String the classpath to run the program with
+   */
+  private String sharedClasspath()
+  {
+    List<String> sharedNames = new ArrayList<>();
+    for(String cpFilename : sharedClasspath)
+    {
+      sharedNames.add(new File(cpFilename).getName());
+    }
+
+    String cp = String.join(File.pathSeparator, sharedClasspath);
+    cp += File.pathSeparator + path;
+    for(String cpFilename : classpathFiles)
+    {
+      if(!sharedNames.contains(new File(cpFilename).getName()))
+      {
+        cp += File.pathSeparator + cpFilename;
+      }
+    }
+    return cp;
+  }
+
   /** Concatenate the file name with the path
    *
    *  @param String file the file name to append to the path
@@ -319,15 +617,21 @@ public class JavaRunner implements Runnable
     if(null != proc)
     {
       proc.destroy();
-      try
-      {
-        Files.deleteIfExists(Paths.get(pathTo("/timeout.log")));
-        writeLines(pathTo("timeout.log"), "Exceeded time limit ("+limit+")");
-      }
-      catch(Exception e)
-      {
-        e.printStackTrace();
-      }
+      writeTimeoutLog();
+    }
+  }
+
+  /** Write timeout.log to record that the program exceeded its time limit */
+  protected void writeTimeoutLog()
+  {
+    try
+    {
+      Files.deleteIfExists(Paths.get(pathTo("/timeout.log")));
+      writeLines(pathTo("timeout.log"), "Exceeded time limit ("+limit+")");
+    }
+    catch(Exception e)
+    {
+      e.printStackTrace();
     }
   }
 }
@@ -336,14 +640,16 @@ public class JavaRunner implements Runnable
 class Timer extends Thread
 {
   private JavaRunner runner;
-  private boolean running;
+  private volatile boolean running;
   private long start;
   private long limit;
 
   public Timer(JavaRunner runner, int limit)
   {
     this.runner = runner;
-    this.running = false;
+
+    // running until terminated, even if the program finishes before this thread gets to run
+    this.running = true;
 
     int buffer = 500; // a few extra miliseconds to compansate for *this* code
 
@@ -358,11 +664,15 @@ class Timer extends Thread
 
     long now, diff;
 
-    running = true;
     start = System.currentTimeMillis();
     while(running)
     {
-      Thread.yield();
+      // sleep instead of spinning so timers don't compete with the programs they are timing
+      try
+      {
+        Thread.sleep(1);
+      }
+      catch(InterruptedException e) {}
       now = System.currentTimeMillis();
       diff = now - start;
 
@@ -0,0 +1,66 @@
+import java.util.*;
+
+/**
+ * A named set of JVM flags used to launch student programs.
+ *
+ * Student programs usually run for a fraction of a second, so the JVM's default
+ * ergonomics (parallel GC threads, a heap sized for the whole machine, full tiered
+ * JIT) cost more than they save, especially when many students are graded at once.
+ */
+public class LaunchProfile {
+  public static final String DEFAULT = "default";
+  public static final String FAST_START = "fast-start";
+  public static final String LOW_MEMORY = "low-memory";
+
+  private static final Map<String, List<String>> PROFILES = new LinkedHashMap<>();
+  static {
+    // Let the JVM pick everything (this is how student programs have always been run)
+    PROFILES.put(DEFAULT, Arrays.asList());
+
+    // Single threaded GC, C1 only, small heap & stacks
+    PROFILES.put(FAST_START, Arrays.asList("-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1", "-Xmx256m", "-Xss1m",
+        "-XX:ActiveProcessorCount=1", "-XX:-UsePerfData"));
+
+    // fast-start with tighter memory limits for graders running many students at the same time
+    PROFILES.put(LOW_MEMORY, Arrays.asList("-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1", "-Xmx64m", "-Xss512k",
+        "-XX:ActiveProcessorCount=1", "-XX:-UsePerfData", "-XX:ReservedCodeCacheSize=16m",
+        "-XX:MaxMetaspaceSize=64m"));
+  }
+
+  private String name;
+  private List<String> flags;
+
+  /**
+   * @param name       One of the profile names (see getNames())
+   * @param extraFlags Additional JVM flags to append to the profile's flags (may be null)
+   */
+  public LaunchProfile(String name, List<String> extraFlags) {
+    if (!PROFILES.containsKey(name)) {
+      throw new IllegalArgumentException("Unknown launch profile: " + name + ". Expected one of " + getNames());
+    }
+
+    this.name = name;
+    this.flags = new ArrayList<>(PROFILES.get(name));
+    if (null != extraFlags) {
+      flags.addAll(extraFlags);
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** The JVM flags for this profile (including any extra flags) */
+  public List<String> getFlags() {
+    return Collections.unmodifiableList(flags);
+  }
+
+  /** The names of all of the available profiles */
+  public static Set<String> getNames() {
+    return PROFILES.keySet();
+  }
+
+  public String toString() {
+    return name + " " + flags;
+  }
+}
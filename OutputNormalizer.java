@@ -0,0 +1,184 @@
+import java.io.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Splits output into lines and normalizes them in one pass over the characters, the
+ * same way for the answer and for every student.
+ *
+ * Lines end at "\n", "\r\n" or "\r" (like Files.readAllLines()), so Windows line
+ * endings always match. Optionally:
+ *   - all white space is removed, and lines that are left blank are dropped (-W)
+ *   - white space at the end of each line is removed
+ *   - upper and lower case are the same (like String.equalsIgnoreCase())
+ * White space is the same characters as the regular expression \s.
+ *
+ * A LineReader reuses its buffers for every file it reads, so comparing a student's
+ * output a line at a time doesn't create any Strings.
+ */
+public final class OutputNormalizer {
+  private final boolean ignoreWhiteSpace;
+  private final boolean ignoreTrailingWhiteSpace;
+  private final boolean ignoreCase;
+
+  public OutputNormalizer(boolean ignoreWhiteSpace, boolean ignoreTrailingWhiteSpace, boolean ignoreCase) {
+    this.ignoreWhiteSpace = ignoreWhiteSpace;
+    this.ignoreTrailingWhiteSpace = ignoreTrailingWhiteSpace;
+    this.ignoreCase = ignoreCase;
+  }
+
+  /** Every normalized line of the file */
+  public List<String> readLines(File file) throws IOException {
+    List<String> lines = new ArrayList<>();
+    try (LineReader reader = new LineReader()) {
+      reader.open(file);
+      while (reader.next()) {
+        lines.add(reader.toString());
+      }
+    }
+    return lines;
+  }
+
+  private static boolean isWhiteSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  /** Reads the normalized lines of one file at a time */
+  public class LineReader implements Closeable {
+    private Reader in;
+    private char[] buffer = new char[8192];
+    private int position;
+    private int end;
+    private boolean skipLineFeed; // the last line ended with "\r", so a "\n" next isn't another line
+
+    private char[] line = new char[256];
+    private int length;
+    private byte[] bytes = new byte[512]; // the line's UTF-16 for update()
+
+    /** Start reading a file (closing the last one) */
+    public void open(File file) throws IOException {
+      close();
+      in = Files.newBufferedReader(file.toPath());
+      position = 0;
+      end = 0;
+      skipLineFeed = false;
+    }
+
+    /**
+     * Read the next line
+     * @return false if there are no more lines
+     */
+    public boolean next() throws IOException {
+      do {
+        if (!readLine()) {
+          return false;
+        }
+      } while (ignoreWhiteSpace && length == 0);
+      return true;
+    }
+
+    private boolean readLine() throws IOException {
+      length = 0;
+      int kept = 0; // the length without white space at the end
+      boolean any = false;
+      while (true) {
+        if (position == end) {
+          end = null == in ? -1 : in.read(buffer);
+          position = 0;
+          if (end <= 0) {
+            end = 0;
+            if (!any) {
+              return false;
+            }
+            break;
+          }
+        }
+
+        char c = buffer[position++];
+        if (skipLineFeed) {
+          skipLineFeed = false;
+          if (c == '\n') {
+            continue;
+          }
+        }
+        if (c == '\n' || c == '\r') {
+          skipLineFeed = c == '\r';
+          break;
+        }
+        any = true;
+
+        if (isWhiteSpace(c)) {
+          if (ignoreWhiteSpace) {
+            continue;
+          }
+        } else if (ignoreCase) {
+          c = Character.toLowerCase(Character.toUpperCase(c));
+        }
+
+        if (length == line.length) {
+          line = Arrays.copyOf(line, line.length * 2);
+        }
+        line[length++] = c;
+        if (!isWhiteSpace(c)) {
+          kept = length;
+        }
+      }
+
+      if (ignoreTrailingWhiteSpace) {
+        length = kept;
+      }
+      return true;
+    }
+
+    /** True if the current line is the same as s */
+    public boolean contentEquals(String s) {
+      if (s.length() != length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (line[i] != s.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Add the current line (and a line break) to a digest, without creating a String */
+    public void update(MessageDigest digest) {
+      int size = 2 * length + 2;
+      if (bytes.length < size) {
+        bytes = new byte[Math.max(size, bytes.length * 2)];
+      }
+      for (int i = 0; i < length; i++) {
+        bytes[2 * i] = (byte) (line[i] >> 8);
+        bytes[2 * i + 1] = (byte) line[i];
+      }
+      bytes[size - 2] = 0;
+      bytes[size - 1] = '\n';
+      digest.update(bytes, 0, size);
+    }
+
+    /** True if the current line is empty or only white space (like "".equals(line.trim())) */
+    public boolean isBlank() {
+      for (int i = 0; i < length; i++) {
+        if (line[i] > ' ') {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      return new String(line, 0, length);
+    }
+
+    public void close() throws IOException {
+      if (null != in) {
+        in.close();
+        in = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,98 @@
+import java.util.*;
+
+/**
+ * The time budget of an in-process program.
+ *
+ * Student classes are rewritten as they are loaded (see BytecodeRewriter) to call
+ * BudgetGate.check() on every method entry, backward branch and exception handler.
+ * Once a program's budget has expired, those checks throw ExceededError on every
+ * thread running that program, so an infinite loop stops at its next iteration and
+ * the error can't be caught by a student's catch or finally block.
+ *
+ * Threads started by a program share the program's budget, and threads shared by
+ * every program use the budget of the student code they are running (see
+ * StudentClassLoader.isShared()). System.exit is handled
+ * the same way (see RunGuard), so exiting also stops every thread of the program.
+ */
+public class RunBudget {
+  private static final InheritableThreadLocal<RunBudget> CURRENT = new InheritableThreadLocal<>();
+
+  private RunBudget parent;
+  private volatile boolean expired;
+  private volatile Integer exitStatus;
+  private List<Runnable> onExpire = new ArrayList<>();
+
+  public RunBudget() {
+  }
+
+  /**
+   * A budget for part of a program (ex: one test method) that also expires when the
+   * program's budget does
+   */
+  public RunBudget(RunBudget parent) {
+    this.parent = parent;
+  }
+
+  /** Throws ExceededError if the current thread's budget has expired */
+  public static void check() {
+    RunBudget budget = current();
+    if (null != budget && budget.isExpired()) {
+      throw new ExceededError();
+    }
+  }
+
+  /** The budget of the program running on the current thread (null if there isn't one) */
+  public static RunBudget current() {
+    if (StudentClassLoader.isShared(Thread.currentThread())) {
+      StudentClassLoader loader = StudentClassLoader.onStack();
+      return null == loader ? null : loader.getBudget();
+    }
+    return CURRENT.get();
+  }
+
+  /** Charge the current thread (and any threads it creates from now on) to this budget */
+  public void bind() {
+    CURRENT.set(this);
+  }
+
+  /** Run the specified action when this budget expires (used to open each class loader's BudgetGate) */
+  public synchronized void onExpire(Runnable action) {
+    onExpire.add(action);
+    if (expired) {
+      action.run();
+    }
+  }
+
+  /** Stop every thread charged to this budget */
+  public synchronized void expire() {
+    expired = true;
+    for (Runnable action : onExpire) {
+      action.run();
+    }
+  }
+
+  /** End the program the same way a timeout does, but because it called System.exit */
+  public void exit(int status) {
+    exitStatus = status;
+    expire();
+  }
+
+  public boolean isExpired() {
+    return expired || (null != parent && parent.isExpired());
+  }
+
+  /** The status passed to System.exit, or null if the program didn't call it */
+  public Integer getExitStatus() {
+    return exitStatus;
+  }
+
+  /** Thrown into a program that has used up its budget */
+  public static class ExceededError extends Error {
+    private static final long serialVersionUID = 1L;
+
+    ExceededError() {
+      // no stack trace, these are thrown repeatedly while the program unwinds
+      super("Exceeded time limit", null, false, false);
+    }
+  }
+}
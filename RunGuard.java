@@ -0,0 +1,261 @@
+import java.io.*;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * What BytecodeRewriter sends dangerous calls in student code to when running in-process.
+ *
+ * System.exit, Runtime.exit and Runtime.halt end the program (not the grader),
+ * System.setOut/setErr/setIn only change the program's own streams, writing files
+ * outside the program's folder and looking up the grader's classes throw a
+ * SecurityException, and the calls in the DENIED list always do.
+ *
+ * Calling any of these by reflection or through a method handle throws a
+ * SecurityException too, except for exiting, which ends the program.
+ *
+ * This takes the place of the --policy file for the in-process backend.
+ */
+public class RunGuard {
+  private static final InheritableThreadLocal<RunGuard> CURRENT = new InheritableThreadLocal<>();
+
+  // The calls BytecodeRewriter guards, as "internal/class/Name.method"
+
+  // Calls that always throw a SecurityException
+  static final Set<String> DENIED = new HashSet<>(Arrays.asList(
+      "java/lang/Runtime.exec", "java/lang/ProcessBuilder.start", "java/lang/ProcessBuilder.startPipeline",
+      "java/lang/Runtime.load", "java/lang/Runtime.loadLibrary", "java/lang/System.load",
+      "java/lang/System.loadLibrary", "java/lang/Runtime.addShutdownHook", "java/lang/System.setSecurityManager",
+      "java/lang/Thread.setDefaultUncaughtExceptionHandler"));
+
+  // Calls replaced by a RunGuard method with the same name (the receiver becomes the first argument)
+  static final Set<String> REPLACED = new HashSet<>(Arrays.asList(
+      "java/lang/System.exit", "java/lang/Runtime.exit", "java/lang/System.setOut", "java/lang/System.setErr",
+      "java/lang/System.setIn"));
+
+  // Replaced by exit
+  static final String HALT = "java/lang/Runtime.halt";
+
+  // Classes whose constructors open a file for writing when their first argument is a file name or File
+  static final Set<String> FILE_WRITERS = new HashSet<>(Arrays.asList(
+      "java/io/FileOutputStream", "java/io/FileWriter", "java/io/RandomAccessFile", "java/io/PrintWriter",
+      "java/io/PrintStream", "java/util/Formatter"));
+
+  // Methods that change the files they are given (java.io.File methods change the receiver's file)
+  static final Set<String> FILE_CHANGERS = new HashSet<>(Arrays.asList(
+      "java/io/File.delete", "java/io/File.deleteOnExit", "java/io/File.createNewFile", "java/io/File.mkdir",
+      "java/io/File.mkdirs", "java/io/File.renameTo", "java/nio/file/Files.write", "java/nio/file/Files.writeString",
+      "java/nio/file/Files.newOutputStream", "java/nio/file/Files.newBufferedWriter", "java/nio/file/Files.delete",
+      "java/nio/file/Files.deleteIfExists", "java/nio/file/Files.move", "java/nio/file/Files.copy",
+      "java/nio/file/Files.createFile", "java/nio/file/Files.createDirectory",
+      "java/nio/file/Files.createDirectories", "java/nio/file/Files.createLink",
+      "java/nio/file/Files.createSymbolicLink"));
+
+  // Methods that open a file (their first argument) for reading or writing, depending on their options
+  static final Set<String> FILE_OPENERS = new HashSet<>(Arrays.asList(
+      "java/nio/file/Files.newByteChannel", "java/nio/channels/FileChannel.open",
+      "java/nio/channels/AsynchronousFileChannel.open"));
+
+  // Methods that create a file in the folder they are given, or in the temp folder
+  static final Set<String> TEMP_FILES = new HashSet<>(Arrays.asList(
+      "java/nio/file/Files.createTempFile", "java/nio/file/Files.createTempDirectory", "java/io/File.createTempFile"));
+
+  // Methods that look up a class by name
+  static final Set<String> CLASS_LOOKUPS = new HashSet<>(Arrays.asList(
+      "java/lang/Class.forName", "java/lang/ClassLoader.loadClass",
+      "java/lang/invoke/MethodHandles$Lookup.findClass"));
+
+  // Methods that call, or look up, another method or constructor
+  static final Set<String> REFLECTION = new HashSet<>(Arrays.asList(
+      "java/lang/reflect/Method.invoke", "java/lang/reflect/Constructor.newInstance",
+      "java/lang/invoke/MethodHandles$Lookup.findStatic", "java/lang/invoke/MethodHandles$Lookup.findVirtual",
+      "java/lang/invoke/MethodHandles$Lookup.findSpecial", "java/lang/invoke/MethodHandles$Lookup.findConstructor",
+      "java/lang/invoke/MethodHandles$Lookup.unreflect", "java/lang/invoke/MethodHandles$Lookup.unreflectSpecial",
+      "java/lang/invoke/MethodHandles$Lookup.unreflectConstructor"));
+
+  // Grader classes that student code can reach (see StudentClassLoader)
+  private static final String[] GRADER_CLASSES = { "RunBudget", "RunGuard", StudentClassLoader.GATE };
+
+  private File sandbox;
+
+  /**
+   * @param sandbox The only folder the program is allowed to change
+   */
+  public RunGuard(File sandbox) throws IOException {
+    this.sandbox = sandbox.getCanonicalFile();
+  }
+
+  /** Guard the current thread (and any threads it creates from now on) */
+  public void bind() {
+    CURRENT.set(this);
+  }
+
+  /** The guard of the program running on the current thread (see StudentClassLoader.isShared()) */
+  private static RunGuard current() {
+    if (StudentClassLoader.isShared(Thread.currentThread())) {
+      StudentClassLoader loader = StudentClassLoader.onStack();
+      return null == loader ? null : loader.getGuard();
+    }
+    return CURRENT.get();
+  }
+
+  /** Replaces System.exit */
+  public static void exit(int status) {
+    RunBudget budget = RunBudget.current();
+    if (null == budget) {
+      deny("System.exit");
+    }
+
+    // stop every thread of the program, starting with this one
+    budget.exit(status);
+    throw new RunBudget.ExceededError();
+  }
+
+  /** Replaces Runtime.exit and Runtime.halt */
+  public static void exit(Runtime runtime, int status) {
+    exit(status);
+  }
+
+  /** Replaces System.setOut */
+  public static void setOut(PrintStream out) {
+    StreamMultiplexer.setOut(out);
+  }
+
+  /** Replaces System.setErr */
+  public static void setErr(PrintStream err) {
+    StreamMultiplexer.setErr(err);
+  }
+
+  /** Replaces System.setIn */
+  public static void setIn(InputStream in) {
+    StreamMultiplexer.setIn(in);
+  }
+
+  /** Replaces calls that student code is never allowed to make */
+  public static void deny(String what) {
+    throw new SecurityException(what + " is not allowed");
+  }
+
+  /** Called before a file (File, Path or file name) is written, created or deleted */
+  public static void checkWrite(Object file) throws IOException {
+    RunGuard guard = current();
+    if (null == guard) {
+      deny("Changing files");
+    }
+
+    File target;
+    if (file instanceof File) {
+      target = (File) file;
+    }
+    else if (file instanceof String) {
+      target = new File((String) file);
+    }
+    else if (file instanceof Path && ((Path) file).getFileSystem() == FileSystems.getDefault()) {
+      target = ((Path) file).toFile();
+    }
+    else {
+      return; // not a file on disk
+    }
+
+    if (!target.getCanonicalFile().toPath().startsWith(guard.sandbox.toPath())) {
+      deny("Changing " + target);
+    }
+  }
+
+  /** Called before a file is opened with options (Files.newByteChannel, FileChannel.open...) */
+  public static void checkOpen(Path file, OpenOption[] options) throws IOException {
+    checkOpen(file, null == options ? null : Arrays.asList(options));
+  }
+
+  public static void checkOpen(Path file, Set<? extends OpenOption> options) throws IOException {
+    checkOpen(file, (Collection<? extends OpenOption>) options);
+  }
+
+  private static void checkOpen(Path file, Collection<? extends OpenOption> options) throws IOException {
+    if (null != options && (options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND)
+        || options.contains(StandardOpenOption.DELETE_ON_CLOSE))) {
+      checkWrite(file);
+    }
+  }
+
+  /** Called before a temp file or folder is created in the specified folder (null for the temp folder) */
+  public static void checkTempFolder(Object folder) throws IOException {
+    checkWrite(null == folder ? System.getProperty("java.io.tmpdir") : folder);
+  }
+
+  /** Called before Method.invoke */
+  public static void checkInvoke(Method method, Object receiver, Object[] args) {
+    String target = name(method.getDeclaringClass(), method.getName());
+    boolean exits = "java/lang/System.exit".equals(target) || "java/lang/Runtime.exit".equals(target)
+        || HALT.equals(target);
+    if (exits && null != args && 1 == args.length && args[0] instanceof Integer) {
+      exit((Integer) args[0]);
+    }
+    if (isGuarded(target)) {
+      deny("Calling " + target.replace('/', '.') + " by reflection");
+    }
+  }
+
+  /** Called before Constructor.newInstance */
+  public static void checkInvoke(Constructor<?> constructor, Object[] args) {
+    checkLookup(constructor);
+  }
+
+  /** Called before MethodHandles.Lookup.findStatic, findVirtual and findSpecial */
+  public static void checkLookup(Class<?> owner, String name) {
+    String target = name(owner, name);
+    if (isGuarded(target)) {
+      deny("Looking up " + target.replace('/', '.'));
+    }
+  }
+
+  /** Called before MethodHandles.Lookup.findConstructor */
+  public static void checkLookup(Class<?> owner, MethodType type) {
+    if (null != owner && null != type && opensFile(owner, type.parameterArray())) {
+      deny("Looking up a " + owner.getName() + " constructor");
+    }
+  }
+
+  /** Called before MethodHandles.Lookup.unreflect and unreflectSpecial */
+  public static void checkLookup(Method method) {
+    checkLookup(method.getDeclaringClass(), method.getName());
+  }
+
+  /** Called before MethodHandles.Lookup.unreflectConstructor */
+  public static void checkLookup(Constructor<?> constructor) {
+    if (opensFile(constructor.getDeclaringClass(), constructor.getParameterTypes())) {
+      deny("Calling a " + constructor.getDeclaringClass().getName() + " constructor by reflection");
+    }
+  }
+
+  /** True if a method is one that BytecodeRewriter guards */
+  private static boolean isGuarded(String target) {
+    return DENIED.contains(target) || REPLACED.contains(target) || HALT.equals(target)
+        || FILE_CHANGERS.contains(target) || FILE_OPENERS.contains(target) || TEMP_FILES.contains(target)
+        || CLASS_LOOKUPS.contains(target) || REFLECTION.contains(target);
+  }
+
+  /** True if a constructor with these parameters opens a file for writing (see FILE_WRITERS) */
+  private static boolean opensFile(Class<?> owner, Class<?>[] parameters) {
+    return FILE_WRITERS.contains(owner.getName().replace('.', '/')) && parameters.length > 0
+        && (String.class == parameters[0] || File.class == parameters[0] || Path.class == parameters[0]);
+  }
+
+  private static String name(Class<?> owner, String method) {
+    return (null == owner ? "" : owner.getName().replace('.', '/')) + "." + method;
+  }
+
+  /** Called before a class is looked up by name (Class.forName, ClassLoader.loadClass...) */
+  public static void checkClassName(String name) {
+    if (null == name) {
+      return;
+    }
+    for (String graderClass : GRADER_CLASSES) {
+      if (name.equals(graderClass) || name.startsWith(graderClass + "$")) {
+        deny("Loading " + name);
+      }
+    }
+  }
+}
@@ -0,0 +1,266 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Finds the students whose code is the most alike, without comparing every pair of
+ * students (Schleimer, Wilkerson and Aiken's winnowing, the idea behind MOSS).
+ *
+ * Each student's .java files are split into tokens, with names, numbers and string
+ * literals replaced by their kind, so renaming variables or changing messages doesn't
+ * hide a copy. Every run of K tokens is hashed, and the smallest hash in each window of
+ * WINDOW hashes is kept as a fingerprint. Any code the same in two students that is at
+ * least K + WINDOW - 1 tokens long gives them at least one fingerprint in common.
+ *
+ * The fingerprints go into an index (fingerprint -> students), so only students that
+ * share a fingerprint are ever compared. Fingerprints in the starter code, or in too
+ * many students to mean anything, are left out.
+ */
+public class SimilarityIndex {
+  // Tokens per k-gram, and k-grams per window
+  private static final int K = 12;
+  private static final int WINDOW = 8;
+
+  // A fingerprint in more than this many students (or this fraction of the class) is boilerplate
+  private static final int MIN_COMMON = 10;
+  private static final double COMMON_FRACTION = 0.1;
+
+  private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList("abstract", "assert", "boolean",
+      "break", "byte", "case", "catch", "char", "class", "const", "continue", "default", "do", "double", "else",
+      "enum", "extends", "final", "finally", "float", "for", "goto", "if", "implements", "import",
+      "instanceof", "int", "interface", "long", "native", "new", "package", "private", "protected", "public",
+      "return", "short", "static", "strictfp", "super", "switch", "synchronized", "this", "throw", "throws",
+      "transient", "try", "void", "volatile", "while", "true", "false", "null", "var"));
+
+  private final List<String> names = new ArrayList<>();
+  private final List<long[]> studentFingerprints = new ArrayList<>();
+  private final Map<Long, List<Integer>> index = new HashMap<>();
+  private final Set<Long> ignored = new HashSet<>();
+
+  /** Leave out the fingerprints of the .java files in dir (the starter code) */
+  public void ignore(File dir) throws IOException {
+    ignored.addAll(fingerprints(dir));
+  }
+
+  /** Add the .java files in a student's folder */
+  public void add(String name, File dir) throws IOException {
+    Set<Long> fingerprints = fingerprints(dir);
+    fingerprints.removeAll(ignored);
+
+    int student = names.size();
+    names.add(name);
+    studentFingerprints.add(fingerprints.stream().mapToLong(Long::longValue).toArray());
+    for (Long fingerprint : fingerprints) {
+      index.computeIfAbsent(fingerprint, f -> new ArrayList<>()).add(student);
+    }
+  }
+
+  /**
+   * The n most similar pairs of students, most similar first, as
+   * "studentA, studentB, shared fingerprints, % of A, % of B". Pairs are ranked by how
+   * much of the smaller of the two is in the other. The percents only count the
+   * fingerprints that aren't boilerplate, so identical students are 100%.
+   */
+  public List<String> topPairs(int n) {
+    int students = names.size();
+    int common = Math.max(MIN_COMMON, (int) (students * COMMON_FRACTION));
+
+    // how many fingerprints each student has that aren't boilerplate
+    int[] sizes = new int[students];
+    for (List<Integer> sharedBy : index.values()) {
+      if (sharedBy.size() <= common) {
+        for (int student : sharedBy) {
+          sizes[student]++;
+        }
+      }
+    }
+
+    // the best n pairs so far, worst on top, as { a, b, shared }
+    Comparator<int[]> bySimilarity = Comparator.<int[]>comparingDouble(pair -> similarity(pair, sizes))
+        .thenComparingInt(pair -> pair[2]);
+    PriorityQueue<int[]> best = new PriorityQueue<>(bySimilarity);
+
+    // for each student, count what it shares with the students after it
+    int[] shared = new int[students];
+    int[] touched = new int[students];
+    for (int a = 0; a < students; a++) {
+      int touchedCount = 0;
+      for (long fingerprint : studentFingerprints.get(a)) {
+        List<Integer> sharedBy = index.get(fingerprint);
+        if (sharedBy.size() > common) {
+          continue;
+        }
+        // students were added in order, so the ones after a are at the end
+        for (int i = sharedBy.size() - 1; i >= 0 && sharedBy.get(i) > a; i--) {
+          int b = sharedBy.get(i);
+          if (shared[b]++ == 0) {
+            touched[touchedCount++] = b;
+          }
+        }
+      }
+
+      for (int i = 0; i < touchedCount; i++) {
+        int b = touched[i];
+        int[] pair = { a, b, shared[b] };
+        shared[b] = 0;
+        if (best.size() < n) {
+          best.add(pair);
+        } else if (n > 0 && bySimilarity.compare(pair, best.peek()) > 0) {
+          best.poll();
+          best.add(pair);
+        }
+      }
+    }
+
+    List<int[]> pairs = new ArrayList<>(best);
+    pairs.sort(bySimilarity.reversed());
+    List<String> lines = new ArrayList<>();
+    for (int[] pair : pairs) {
+      lines.add(names.get(pair[0]) + ", " + names.get(pair[1]) + ", " + pair[2] + ", " + percent(pair[2], sizes[pair[0]])
+          + ", " + percent(pair[2], sizes[pair[1]]));
+    }
+    return lines;
+  }
+
+  /** How much of the smaller student is in the other one */
+  private static double similarity(int[] pair, int[] sizes) {
+    return (double) pair[2] / Math.max(1, Math.min(sizes[pair[0]], sizes[pair[1]]));
+  }
+
+  private static long percent(long part, int whole) {
+    return Math.round(100.0 * part / Math.max(1, whole));
+  }
+
+  /** The winnowed fingerprints of every .java file in dir */
+  private static Set<Long> fingerprints(File dir) throws IOException {
+    Set<Long> fingerprints = new HashSet<>();
+    File[] files = dir.listFiles();
+    if (null == files) {
+      return fingerprints;
+    }
+
+    for (File file : files) {
+      if (file.isFile() && file.getName().endsWith(".java")) {
+        winnow(tokenize(new String(Files.readAllBytes(file.toPath()), "UTF-8")), fingerprints);
+      }
+    }
+    return fingerprints;
+  }
+
+  /** Add the smallest k-gram hash of each window of tokens to fingerprints (the rightmost one on ties) */
+  private static void winnow(int[] tokens, Set<Long> fingerprints) {
+    int count = tokens.length - K + 1;
+    if (count <= 0) {
+      return;
+    }
+
+    // hash every k-gram, rolling the hash along the tokens
+    long[] hashes = new long[count];
+    long power = 1;
+    for (int i = 1; i < K; i++) {
+      power *= 31;
+    }
+    long hash = 0;
+    for (int i = 0; i < tokens.length; i++) {
+      if (i >= K) {
+        hash -= tokens[i - K] * power;
+      }
+      hash = hash * 31 + tokens[i];
+      if (i >= K - 1) {
+        hashes[i - K + 1] = mix(hash);
+      }
+    }
+
+    int min = -1;
+    for (int start = 0; start + WINDOW <= Math.max(count, WINDOW); start++) {
+      int end = Math.min(start + WINDOW, count);
+      if (min < start) {
+        // the last minimum left the window, so look at the whole window
+        min = start;
+        for (int i = start + 1; i < end; i++) {
+          if (hashes[i] <= hashes[min]) {
+            min = i;
+          }
+        }
+      }
+      else if (hashes[end - 1] <= hashes[min]) {
+        min = end - 1;
+      }
+      fingerprints.add(hashes[min]);
+    }
+  }
+
+  /** Spread the bits of a hash, so the smallest hashes aren't just the ones made of the smallest tokens */
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    return hash ^ (hash >>> 33);
+  }
+
+  /**
+   * The tokens of Java source code, as hash codes. Comments and white space are skipped,
+   * names are all "I", numbers "N", and string and character literals "S".
+   */
+  static int[] tokenize(String source) {
+    int[] tokens = new int[64];
+    int count = 0;
+    int i = 0;
+    int n = source.length();
+    while (i < n) {
+      char c = source.charAt(i);
+      String token;
+      int start = i;
+      if (Character.isWhitespace(c)) {
+        i++;
+        continue;
+      }
+      else if (source.startsWith("//", i)) {
+        while (i < n && source.charAt(i) != '\n') {
+          i++;
+        }
+        continue;
+      }
+      else if (source.startsWith("/*", i)) {
+        int close = source.indexOf("*/", i + 2);
+        i = close < 0 ? n : close + 2;
+        continue;
+      }
+      else if (Character.isJavaIdentifierStart(c)) {
+        while (i < n && Character.isJavaIdentifierPart(source.charAt(i))) {
+          i++;
+        }
+        String word = source.substring(start, i);
+        token = KEYWORDS.contains(word) ? word : "I";
+      }
+      else if (Character.isDigit(c) || (c == '.' && i + 1 < n && Character.isDigit(source.charAt(i + 1)))) {
+        while (i < n && (Character.isLetterOrDigit(source.charAt(i)) || source.charAt(i) == '.'
+            || source.charAt(i) == '_')) {
+          i++;
+        }
+        token = "N";
+      }
+      else if (c == '"' || c == '\'') {
+        // skip to the closing quote (text blocks end at their closing """)
+        String quote = source.startsWith("\"\"\"", i) ? "\"\"\"" : String.valueOf(c);
+        i += quote.length();
+        while (i < n && !source.startsWith(quote, i)) {
+          i += source.charAt(i) == '\\' ? 2 : 1;
+        }
+        i = Math.min(n, i + quote.length());
+        token = "S";
+      }
+      else {
+        i++;
+        token = String.valueOf(c);
+      }
+
+      if (count == tokens.length) {
+        tokens = Arrays.copyOf(tokens, count * 2);
+      }
+      tokens[count++] = token.hashCode();
+    }
+    return Arrays.copyOf(tokens, count);
+  }
+}
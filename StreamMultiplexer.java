@@ -0,0 +1,206 @@
+import java.io.*;
+
+/**
+ * Replaces System.in, System.out and System.err with streams that send each read
+ * and write to the streams of the program running on the current thread.
+ *
+ * In-process programs bind their own streams to the thread that runs main. Threads
+ * the program starts inherit those streams, so several programs can run in the same
+ * JVM at once without mixing their output. Threads with no program bound (like the
+ * grader's own threads) use the original System streams. Threads shared by every
+ * program use the streams of the student code they are running (see StudentClassLoader.isShared()).
+ */
+public class StreamMultiplexer {
+  private static final InheritableThreadLocal<Streams> CURRENT = new InheritableThreadLocal<>();
+
+  private static PrintStream originalOut;
+  private static PrintStream originalErr;
+  private static InputStream originalIn;
+
+  private static PrintStream multiplexedOut;
+  private static PrintStream multiplexedErr;
+  private static InputStream multiplexedIn;
+
+  /** Replace System.in/out/err with the multiplexing streams. Only the first call does anything. */
+  public static synchronized void install() {
+    if (null != originalOut) {
+      return;
+    }
+
+    originalOut = System.out;
+    originalErr = System.err;
+    originalIn = System.in;
+
+    multiplexedOut = new PrintStream(new RoutingOutputStream(false), true);
+    multiplexedErr = new PrintStream(new RoutingOutputStream(true), true);
+    multiplexedIn = new RoutingInputStream();
+
+    System.setOut(multiplexedOut);
+    System.setErr(multiplexedErr);
+    System.setIn(multiplexedIn);
+  }
+
+  /** Send System.in/out/err for the current thread (and any threads it creates from now on) to the specified streams */
+  public static void bind(Streams streams) {
+    CURRENT.set(streams);
+  }
+
+  /** The streams of the program running on the current thread (null if there isn't one) */
+  public static Streams current() {
+    if (StudentClassLoader.isShared(Thread.currentThread())) {
+      StudentClassLoader loader = StudentClassLoader.onStack();
+      return null == loader ? null : loader.getStreams();
+    }
+    return CURRENT.get();
+  }
+
+  /** Stop sending the current thread's System.in/out/err to its program's streams */
+  public static void unbind() {
+    CURRENT.remove();
+  }
+
+  /** System.setOut for the program running on the current thread */
+  public static void setOut(PrintStream out) {
+    Streams streams = current();
+    if (null == streams) {
+      System.setOut(out);
+      return;
+    }
+    streams.out = out == multiplexedOut ? streams.programOut : out == multiplexedErr ? streams.programErr : out;
+  }
+
+  /** System.setErr for the program running on the current thread */
+  public static void setErr(PrintStream err) {
+    Streams streams = current();
+    if (null == streams) {
+      System.setErr(err);
+      return;
+    }
+    streams.err = err == multiplexedErr ? streams.programErr : err == multiplexedOut ? streams.programOut : err;
+  }
+
+  /** System.setIn for the program running on the current thread */
+  public static void setIn(InputStream in) {
+    Streams streams = current();
+    if (null == streams) {
+      System.setIn(in);
+      return;
+    }
+    streams.in = in == multiplexedIn ? streams.programIn : in;
+  }
+
+  /** The streams of one program. Anything written after close() is thrown away (the streams are not closed). */
+  public static class Streams implements Closeable {
+    private final InputStream programIn;
+    private final OutputStream programOut;
+    private final OutputStream programErr;
+    private volatile boolean closed;
+
+    // the program can replace these with System.setIn/setOut/setErr
+    private volatile InputStream in;
+    private volatile OutputStream out;
+    private volatile OutputStream err;
+
+    public Streams(InputStream in, OutputStream out, OutputStream err) {
+      this.programIn = this.in = in;
+      this.programOut = this.out = out;
+      this.programErr = this.err = err;
+    }
+
+    /** New streams that read this program's System.in, but keep what is written to them separate */
+    public Streams split(OutputStream out, OutputStream err) {
+      return new Streams(in, out, err);
+    }
+
+    /** Write output that was kept separate (see split()) all at once, so it isn't mixed with other output */
+    public synchronized void write(byte[] out, byte[] err) throws IOException {
+      if (!closed) {
+        this.out.write(out);
+        this.err.write(err);
+      }
+    }
+
+    public void close() throws IOException {
+      synchronized (this) {
+        closed = true;
+        programOut.flush();
+        programErr.flush();
+      }
+    }
+  }
+
+  /** Sends writes to System.out or System.err of the program running on the current thread */
+  private static class RoutingOutputStream extends OutputStream {
+    private final boolean isErr;
+
+    RoutingOutputStream(boolean isErr) {
+      this.isErr = isErr;
+    }
+
+    public void write(int b) throws IOException {
+      Streams streams = current();
+      if (null == streams) {
+        original().write(b);
+        return;
+      }
+
+      synchronized (streams) {
+        if (!streams.closed) {
+          (isErr ? streams.err : streams.out).write(b);
+        }
+      }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      Streams streams = current();
+      if (null == streams) {
+        original().write(b, off, len);
+        return;
+      }
+
+      synchronized (streams) {
+        if (!streams.closed) {
+          (isErr ? streams.err : streams.out).write(b, off, len);
+        }
+      }
+    }
+
+    public void flush() throws IOException {
+      Streams streams = current();
+      if (null == streams) {
+        original().flush();
+        return;
+      }
+
+      synchronized (streams) {
+        if (!streams.closed) {
+          (isErr ? streams.err : streams.out).flush();
+        }
+      }
+    }
+
+    private PrintStream original() {
+      return isErr ? originalErr : originalOut;
+    }
+  }
+
+  /** Reads from System.in of the program running on the current thread */
+  private static class RoutingInputStream extends InputStream {
+    private InputStream current() {
+      Streams streams = StreamMultiplexer.current();
+      return null == streams ? originalIn : streams.in;
+    }
+
+    public int read() throws IOException {
+      return current().read();
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      return current().read(b, off, len);
+    }
+
+    public int available() throws IOException {
+      return current().available();
+    }
+  }
+}
@@ -0,0 +1,140 @@
+import java.io.*;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Loads one student's classes for in-process execution.
+ *
+ * Classes found in the student's folder are rewritten by BytecodeRewriter before
+ * they are defined. Everything else comes from the parent (the JDK and the shared
+ * test folder jars), except for the few grader classes the rewritten code calls.
+ *
+ * It also knows the streams, budget and guard of the program it runs, for threads
+ * that are shared by every program (see isShared()).
+ */
+public class StudentClassLoader extends URLClassLoader {
+  static {
+    registerAsParallelCapable();
+  }
+
+  public static final String GATE = "BudgetGate";
+
+  // Adds the budget checks and guards (shared by every student, it doesn't keep any state)
+  private static final ClassRewriter REWRITER = ClassRewriter.get();
+
+  // Grader classes that rewritten student code is allowed to see
+  private static final Set<String> BRIDGE_CLASSES = new HashSet<>(Arrays.asList(
+      "RunBudget", "RunBudget$ExceededError", "RunGuard"));
+
+  // Hidden frames too, since a method reference (ex: System.out::println) is student code in a hidden class
+  private static final StackWalker STACK = StackWalker.getInstance(EnumSet.of(
+      StackWalker.Option.RETAIN_CLASS_REFERENCE, StackWalker.Option.SHOW_HIDDEN_FRAMES));
+
+  private Class<?> gate;
+
+  private StreamMultiplexer.Streams streams;
+  private RunBudget budget;
+  private RunGuard guard;
+
+  public StudentClassLoader(URL[] urls, ClassLoader parent) throws IOException {
+    super(urls, parent);
+
+    // Each student gets their own BudgetGate so opening it doesn't slow anyone else down
+    gate = defineGraderClass(GATE);
+  }
+
+  /** Remember the streams, budget and guard of the program running in this class loader */
+  public void setProgram(StreamMultiplexer.Streams streams, RunBudget budget, RunGuard guard) {
+    this.streams = streams;
+    this.budget = budget;
+    this.guard = guard;
+  }
+
+  public StreamMultiplexer.Streams getStreams() {
+    return streams;
+  }
+
+  public RunBudget getBudget() {
+    return budget;
+  }
+
+  public RunGuard getGuard() {
+    return guard;
+  }
+
+  /**
+   * True if the thread is shared by every program: a ForkJoinPool.commonPool() worker,
+   * which runs parallel streams and CompletableFuture tasks. These workers are started by
+   * whichever program (or the grader) needs one first and then run everyone's tasks, so
+   * the streams, budget and guard they inherited belong to the wrong program. The program
+   * is found from the student code on the thread's stack instead (see onStack()).
+   */
+  public static boolean isShared(Thread thread) {
+    return thread instanceof ForkJoinWorkerThread
+        && ((ForkJoinWorkerThread) thread).getPool() == ForkJoinPool.commonPool();
+  }
+
+  /** The class loader of the innermost student code on the current thread's stack (null if there isn't any) */
+  public static StudentClassLoader onStack() {
+    return STACK.walk(frames -> frames.map(frame -> frame.getDeclaringClass().getClassLoader())
+        .filter(loader -> loader instanceof StudentClassLoader).map(loader -> (StudentClassLoader) loader)
+        .findFirst().orElse(null));
+  }
+
+  /** Make every program running in this class loader check its RunBudget */
+  public void openGate() {
+    try {
+      gate.getField("open").setBoolean(null, true);
+    } catch (ReflectiveOperationException e) {
+      e.printStackTrace();
+    }
+  }
+
+  @Override
+  protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+    if (BRIDGE_CLASSES.contains(name)) {
+      return Class.forName(name, false, StudentClassLoader.class.getClassLoader());
+    }
+    if (GATE.equals(name)) {
+      return gate;
+    }
+    return super.loadClass(name, resolve);
+  }
+
+  @Override
+  protected Class<?> findClass(String name) throws ClassNotFoundException {
+    URL resource = findResource(name.replace('.', '/') + ".class");
+    if (null == resource) {
+      throw new ClassNotFoundException(name);
+    }
+
+    if (null == REWRITER) {
+      throw new ClassNotFoundException(name + " (BytecodeRewriter isn't available, see ClassRewriter)");
+    }
+
+    byte[] classFile;
+    try (InputStream in = resource.openStream()) {
+      classFile = REWRITER.instrument(in.readAllBytes());
+    } catch (IOException | RuntimeException e) {
+      throw new ClassNotFoundException(name, e);
+    }
+
+    int lastDot = name.lastIndexOf('.');
+    if (lastDot > 0 && null == getDefinedPackage(name.substring(0, lastDot))) {
+      definePackage(name.substring(0, lastDot), null, null, null, null, null, null, null);
+    }
+
+    return defineClass(name, classFile, 0, classFile.length);
+  }
+
+  /** Define this class loader's own copy of one of the grader's classes */
+  private Class<?> defineGraderClass(String name) throws IOException {
+    try (InputStream in = StudentClassLoader.class.getClassLoader().getResourceAsStream(name + ".class")) {
+      byte[] classFile = in.readAllBytes();
+      return defineClass(name, classFile, 0, classFile.length);
+    }
+  }
+}
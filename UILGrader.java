@@ -1,7 +1,9 @@
 import java.io.*;
 import java.nio.file.*;
+import java.security.*;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.regex.*;
 
 import picocli.CommandLine;
 import picocli.CommandLine.Model.CommandSpec;
@@ -20,8 +22,19 @@ public class UILGrader extends JEMGrader implements Callable<Integer> {
   public static final String TIMEOUT = "T";
 
   private File answer;
+  private ExpectedOutput expected;
+  private OutputNormalizer normalizer;
+  private OutputNormalizer.LineReader outputReader;
   protected String testResult;
 
+  // The test cases (<fileToCompile>N.in and <fileToCompile>N.out in the test folder), if there are any
+  private List<File> caseInputs = new ArrayList<>();
+  private List<ExpectedOutput> caseAnswers = new ArrayList<>();
+
+  // The result for each distinct output (by its hash) and how many outputs were graded, for each answer
+  private Map<ExpectedOutput, Map<String, String>> gradedOutputs = new IdentityHashMap<>();
+  private Map<ExpectedOutput, Integer> outputCounts = new IdentityHashMap<>();
+
   @Option(names = { "-s", "--similarity" }, description = "What percent of characters in solution must be correct")
   private int similarityThreshold = IGNORE;
 
@@ -31,6 +44,15 @@ public class UILGrader extends JEMGrader implements Callable<Integer> {
   @Option(names = { "-W", "--whitespace" }, description = "Ignore all white space when comparing output")
   private boolean ignoreWhiteSpace = false;
 
+  @Option(names = { "--trailing-whitespace" }, description = "Ignore white space at the end of lines when comparing output")
+  private boolean ignoreTrailingWhiteSpace = false;
+
+  @Option(names = { "-i", "--ignore-case" }, description = "Ignore upper/lower case when comparing output")
+  private boolean ignoreCase = false;
+
+  @Option(names = { "--case-jobs" }, description = "How many test cases (numbered .in/.out files) of a student to run at the same time. Default 1.")
+  private int caseJobs = 1;
+
   public boolean usingLevenshtein() {
     return maxTypos != IGNORE || similarityThreshold != IGNORE;
   }
@@ -50,19 +72,106 @@ public class UILGrader extends JEMGrader implements Callable<Integer> {
   }
 
   public void printResultHeader() {
-    System.out.println("Student, Test Result");
+    System.out.println("Student, " + getResultColumns());
+  }
+
+  /** The header of the testResult columns: one column for each case and a total if there are cases */
+  protected String getResultColumns() {
+    if (caseInputs.isEmpty()) {
+      return "Test Result";
+    }
+
+    List<String> columns = new ArrayList<>();
+    for (int i = 0; i < caseInputs.size(); i++) {
+      String name = caseName(i);
+      columns.add(name);
+      if (usingLevenshtein()) {
+        columns.add(name + " Distance");
+      }
+    }
+    columns.add("Total");
+    return String.join(", ", columns);
   }
 
   public void printResult(File dir) {
     System.out.printf("%s, %s%n", dir.getName().replaceAll("_", " "), testResult);
   }
 
+  // The name of a case (its input file's name without .in)
+  private String caseName(int i) {
+    return caseInputs.get(i).getName().replaceFirst("\\.in$", "");
+  }
+
   public void setup() {
+    gradedOutputs.clear();
+    outputCounts.clear();
+
+    // read the answer once, instead of for every student
+    normalizer = new OutputNormalizer(ignoreWhiteSpace, ignoreTrailingWhiteSpace, ignoreCase);
+    outputReader = normalizer.new LineReader();
+    expected = null;
+    findCases();
+    if (caseInputs.isEmpty()) {
+      try {
+        expected = new ExpectedOutput(answer, normalizer);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
     printResultHeader();
   }
 
+  /** Find the numbered test cases in the test folder (an input file for each numbered answer file), in order */
+  private void findCases() {
+    caseInputs.clear();
+    caseAnswers.clear();
+    if (null == getPathToTests() || null == getFileToCompile()) {
+      return;
+    }
+
+    File testDir = new File(getPathToTests());
+    File[] files = testDir.listFiles();
+    if (null == files) {
+      return;
+    }
+
+    Pattern caseName = Pattern.compile(Pattern.quote(getFileToCompile()) + "(\\d+)\\.in");
+    TreeMap<Integer, File> inputs = new TreeMap<>();
+    for (File file : files) {
+      Matcher matcher = caseName.matcher(file.getName());
+      if (matcher.matches() && new File(testDir, getFileToCompile() + matcher.group(1) + ".out").exists()) {
+        inputs.put(Integer.parseInt(matcher.group(1)), file);
+      }
+    }
+
+    for (Map.Entry<Integer, File> input : inputs.entrySet()) {
+      ExpectedOutput caseAnswer = null;
+      try {
+        caseAnswer = new ExpectedOutput(new File(testDir, getFileToCompile() + input.getKey() + ".out"), normalizer);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      caseInputs.add(input.getValue());
+      caseAnswers.add(caseAnswer);
+    }
+  }
+
   public void cleanup() {
+    // how many different outputs the students printed (ex: the right one and a few common mistakes)
+    if (caseInputs.isEmpty()) {
+      reportDistinctOutputs("", expected);
+    }
+    for (int i = 0; i < caseInputs.size(); i++) {
+      reportDistinctOutputs(caseName(i) + ": ", caseAnswers.get(i));
+    }
+  }
 
+  private void reportDistinctOutputs(String label, ExpectedOutput answer) {
+    if (gradedOutputs.containsKey(answer)) {
+      System.err.println(label + gradedOutputs.get(answer).size() + " distinct outputs from " + outputCounts.get(answer)
+          + " programs");
+    }
   }
 
   public void beforeCompile(JavaRunner jr, File dir) {
@@ -70,14 +179,41 @@ public class UILGrader extends JEMGrader implements Callable<Integer> {
   }
 
   public void beforeExecute(JavaRunner jr, File dir) {
-    // noop
+    if (!caseInputs.isEmpty()) {
+      // run the program once for each case's input
+      jr.setCases(caseInputs, caseJobs);
+    }
   }
 
   public void afterExecute(JavaRunner jr, File dir) {
-    String result = "F";
+    if (null == jr.getCases()) {
+      this.testResult = grade(jr.getOutputLog(), jr.getErrorLog(), expected);
+      return;
+    }
 
-    File output = jr.getOutputLog();
-    File err = jr.getErrorLog();
+    // a column for each case, and how many passed
+    List<String> results = new ArrayList<>();
+    int passed = 0;
+    for (int i = 0; i < jr.getCases().size(); i++) {
+      JavaRunner caseRunner = jr.getCases().get(i);
+      String result = caseRunner.timedOut() ? withDistance(TIMEOUT)
+          : grade(caseRunner.getOutputLog(), caseRunner.getErrorLog(), caseAnswers.get(i));
+      if (result.startsWith(PASS)) {
+        passed++;
+      }
+      results.add(result);
+    }
+    results.add("" + passed);
+    this.testResult = String.join(", ", results);
+  }
+
+  /**
+   * Grade one run of the program
+   *
+   * @return The result (P, F or E), followed by the (levenshtein) distance if it is used
+   */
+  protected String grade(File output, File err, ExpectedOutput expected) {
+    String result = "F";
 
     if (err.exists()) {
       try {
@@ -95,138 +231,317 @@ public class UILGrader extends JEMGrader implements Callable<Integer> {
       }
     } // end if err exists
 
-    int distance = -1;
-    if (!result.equals("E") && output.exists()) {
-      // Read test results from output file
-      try {
-        List<String> lines = Files.readAllLines(Paths.get(output.getPath()));
-        List<String> answerLines = Files.readAllLines(Paths.get(answer.getPath()));
+    if (!result.equals(ERROR) && output.exists() && null != expected) {
+      // Most students print one of a few outputs, so each distinct output is only compared once
+      outputCounts.merge(expected, 1, Integer::sum);
+      Map<String, String> graded = gradedOutputs.computeIfAbsent(expected, answer -> new HashMap<>());
+      String hash = hashOutput(output);
+      if (null == hash) {
+        return compare(output, expected);
+      }
+      String known = graded.get(hash);
+      if (null == known) {
+        known = compare(output, expected);
+        graded.put(hash, known);
+      }
+      return known;
+    }
 
-        // Remove all whitespace from lines and answer
-        if (ignoreWhiteSpace) {
-          for (int i = 0; i < lines.size(); i++) {
-            lines.set(i, lines.get(i).replaceAll("\\s+", ""));
-          } // end remove whitespace from lines
+    return withDistance(result);
+  }
 
-          // Remove entirely blank lines (vertical whitespce)
-          lines.removeAll(Arrays.asList(""));
+  /** A hash of the normalized output, or null if it can't be read */
+  private String hashOutput(File output) {
+    try (OutputNormalizer.LineReader out = outputReader) {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      out.open(output);
+      while (out.next()) {
+        out.update(digest);
+      }
+      return Base64.getEncoder().encodeToString(digest.digest());
+    } catch (IOException | NoSuchAlgorithmException e) {
+      return null; // compare() reports it
+    }
+  }
 
-          for (int i = 0; i < answerLines.size(); i++) {
-            answerLines.set(i, answerLines.get(i).replaceAll("\\s+", ""));
-          } // end remove whitespace from answerLines
+  /**
+   * Compare an output to the answer
+   *
+   * @return The result (P or F), followed by the (levenshtein) distance if it is used
+   */
+  private String compare(File output, ExpectedOutput expected) {
+    String result = FAIL;
+    int distance = -1;
+    try {
+      // Compare a line at a time first, the whole files are only needed for Levenshtein
+      if (outputMatches(output, expected)) {
+        result = PASS;
+        distance = similarityThreshold != IGNORE ? 100 : 0;
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+
+    // If result did not pass because it is 100% correct,
+    // check if it meets the similarity threshold or max typos
+    if (!result.equals(PASS) && usingLevenshtein()) {
+      // Read test results from output file
+      try {
+        List<String> lines = normalizer.readLines(output);
 
-          // Remove entirely blank lines (vertical whitespce)
-          answerLines.removeAll(Arrays.asList(""));
+        // check for empty files, and remove empty last lines
+        boolean trim = lines.size() > 0 && !expected.isEmpty();
+        if (trim && "".equals(lines.get(lines.size() - 1).trim())) {
+          lines.remove(lines.size() - 1);
+        }
 
-        } // end if ignore whitespace
+        List<String> answerLines = expected.getLines(trim);
+        int answerLength = expected.getLength(trim);
 
-        // check for empty files
-        if (lines.size() > 0 && answerLines.size() > 0) {
-          // remove empty last lines
-          if ("".equals(lines.get(lines.size() - 1).trim())) {
-            lines.remove(lines.size() - 1);
-          }
+        // Only distances up to the limit matter, anything past it is reported as limit+1
+        if (maxTypos != IGNORE) {
+          distance = calculateLevenshteinDistance(lines, answerLines, maxTypos);
+        } else if (answerLength > 0) {
+          distance = calculateLevenshteinDistance(lines, answerLines,
+              maxDistanceForSimilarity(similarityThreshold, answerLength));
+        } else {
+          distance = calculateLevenshteinDistance(lines, answerLines, Integer.MAX_VALUE - 1);
+        }
 
-          if ("".equals(answerLines.get(answerLines.size() - 1).trim())) {
-            answerLines.remove(answerLines.size() - 1);
+        // Check if this soltion is below the maxTypos allowed or similarity threshold
+        if (maxTypos != IGNORE) {
+          // Check if this has less than the max allowed typos
+          if (distance <= maxTypos) {
+            result = PASS;
           }
-
-          // check that they have the same number of lines
-          if (lines.size() == answerLines.size()) {
+        } // end if check for typos
+        else if (similarityThreshold != IGNORE) {
+          // check if this meets the similarity threshold
+          distance = 100 - (int) Math.round(1.0 * distance / answerLength * 100);
+          if (distance >= similarityThreshold) {
             result = PASS;
-            distance = similarityThreshold != IGNORE ? 100 : 0;
-            for (int i = 0; i < lines.size(); i++) {
-              if (!lines.get(i).equals(answerLines.get(i))) {
-                result = FAIL;
-                break;
-              } // end if lines are not equal
-            } // end for each line
-          } // end if same number of lines
-        } // end if there are any lines
-
-        // If result did not pass because it is 100% correct,
-        // check if it meets the similarity threshold or max typos
-        if (!result.equals(PASS) && usingLevenshtein()) {
-          String fullOutput = String.join("\n", lines);
-          String fullAnswer = String.join("\n", answerLines);
-
-          distance = calculateLevenshteinDistance(fullOutput, fullAnswer);
-
-          // Check if this soltion is below the maxTypos allowed or similarity threshold
-          if (maxTypos != IGNORE) {
-            // Check if this has less than the max allowed typos
-            if (distance <= maxTypos) {
-              result = PASS;
-            }
-          } // end if check for typos
-          else if (similarityThreshold != IGNORE) {
-            // check if this meets the similarity threshold
-            distance = 100 - (int) Math.round(1.0 * distance / fullAnswer.length() * 100);
-            if (distance >= similarityThreshold) {
-              result = PASS;
-            } // end if distance greater than similarity threshold
-          } // end if check for similarity
-        } // end if result is not already passing and using levenshtein
+          } // end if distance greater than similarity threshold
+        } // end if check for similarity
       } // end try
       catch (Exception e) {
         e.printStackTrace();
       } // end catch
-    } // end if output exists
+    } // end if result is not already passing and using levenshtein
 
     // update output csv file
     // only include the (levenshtein) distance if it was used to calculate a passing
     // grade
     if (usingLevenshtein()) {
-      this.testResult = result + ", " + distance;
+      return result + ", " + distance;
     } else {
-      this.testResult = result;
+      return result;
     }
   }
 
-  public void afterCompileError(JavaRunner jr, File dir) {
-    this.testResult = COMPILE_ERROR;
-    if (usingLevenshtein()) {
-      this.testResult += ", " + IGNORE;
+  /**
+   * Check if the output matches the answer, reading the output a line at a time (so only
+   * the current line is in memory). Matches the same outputs as comparing every line
+   * read with Files.readAllLines(): empty files never match, -W removes all white space
+   * and blank lines, and a blank last line is ignored.
+   */
+  protected boolean outputMatches(File output, ExpectedOutput expected) throws IOException {
+    List<String> answerLines = expected.getLines(true);
+    try (OutputNormalizer.LineReader out = outputReader) {
+      out.open(output);
+      boolean any = false;
+      for (String answerLine : answerLines) {
+        if (!out.next() || !out.contentEquals(answerLine)) {
+          return false;
+        }
+        any = true;
+      }
+      boolean lastBlank = any && out.isBlank();
+
+      if (!out.next()) {
+        // an output that ends with a blank line has one less line once it's removed
+        return any && !lastBlank && !expected.isEmpty();
+      }
+      // only ok if the one extra line is a blank last line
+      return out.isBlank() && !out.next() && !expected.isEmpty();
     }
   }
 
+  public void afterCompileError(JavaRunner jr, File dir) {
+    this.testResult = forEveryCase(COMPILE_ERROR);
+  }
+
   public void afterTimeoutError(JavaRunner jr, File dir) {
-    this.testResult = TIMEOUT;
-    if (usingLevenshtein()) {
-      this.testResult += ", " + IGNORE;
+    this.testResult = forEveryCase(TIMEOUT);
+  }
+
+  // The result, with a distance of IGNORE if levenshtein is used
+  private String withDistance(String result) {
+    return usingLevenshtein() ? result + ", " + IGNORE : result;
+  }
+
+  // The same result for every case (and a total of 0), or just the result if there aren't any cases
+  private String forEveryCase(String result) {
+    if (caseInputs.isEmpty()) {
+      return withDistance(result);
     }
+    return String.join(", ", Collections.nCopies(caseInputs.size(), withDistance(result))) + ", 0";
   }
 
   public void afterEverything(File dir) {
     printResult(dir);
   }
 
+  // Strings at least this long use EditDistance.myers() instead of the table
+  private static final int BIT_PARALLEL_LENGTH = 64;
+
   // https://www.baeldung.com/java-levenshtein-distance
+  // Only the previous row of the table is kept, and the rows run along the shorter
+  // string, so this needs O(min(n, m)) memory instead of the whole n*m table.
   public static int calculateLevenshteinDistance(String x, String y) {
-    int[][] dp = new int[x.length() + 1][y.length() + 1];
-
-    for (int i = 0; i <= x.length(); i++) {
-      for (int j = 0; j <= y.length(); j++) {
-        if (i == 0) {
-          dp[i][j] = j;
-        } else if (j == 0) {
-          dp[i][j] = i;
-        } else {
-          dp[i][j] = min(dp[i - 1][j - 1] + costOfSubstitution(x.charAt(i - 1), y.charAt(j - 1)), dp[i - 1][j] + 1,
-              dp[i][j - 1] + 1);
+    if (x.length() < y.length()) {
+      // the distance is the same both ways, so make y the shorter one
+      String swap = x;
+      x = y;
+      y = swap;
+    }
+    if (y.length() >= BIT_PARALLEL_LENGTH) {
+      return EditDistance.myers(x, y);
+    }
+
+    int[] previous = new int[y.length() + 1];
+    int[] current = new int[y.length() + 1];
+
+    for (int j = 0; j <= y.length(); j++) {
+      previous[j] = j;
+    }
+
+    for (int i = 1; i <= x.length(); i++) {
+      current[0] = i;
+      char c = x.charAt(i - 1);
+      for (int j = 1; j <= y.length(); j++) {
+        int substitution = previous[j - 1] + costOfSubstitution(c, y.charAt(j - 1));
+        int deletion = previous[j] + 1;
+        int insertion = current[j - 1] + 1;
+        current[j] = Math.min(substitution, Math.min(deletion, insertion));
+      }
+
+      int[] swap = previous;
+      previous = current;
+      current = swap;
+    }
+
+    return previous[y.length()];
+  }
+
+  /**
+   * Levenshtein distance, but only if it is at most max. Otherwise returns max + 1.
+   *
+   * Only the cells within max of the diagonal can be at most max, so only those are
+   * calculated (Ukkonen's band), and it stops as soon as every cell in a row is past
+   * max. This takes O(max * n) time instead of O(n * m).
+   */
+  public static int calculateLevenshteinDistance(String x, String y, int max) {
+    if (x.length() < y.length()) {
+      String swap = x;
+      x = y;
+      y = swap;
+    }
+
+    int tooFar = max + 1;
+    if (max < 0 || x.length() - y.length() > max) {
+      // it takes at least that many insertions
+      return tooFar;
+    }
+    if (max >= x.length() || (y.length() >= BIT_PARALLEL_LENGTH && 2 * max + 1 > 8 * ((y.length() + 63) / 64))) {
+      // the band is the whole table, or wide enough that a block of 64 rows (about 8 cells of work) is faster
+      return Math.min(tooFar, calculateLevenshteinDistance(x, y));
+    }
+
+    int[] previous = new int[y.length() + 1];
+    int[] current = new int[y.length() + 1];
+
+    for (int j = 0; j <= y.length(); j++) {
+      previous[j] = Math.min(j, tooFar);
+    }
+
+    for (int i = 1; i <= x.length(); i++) {
+      int first = Math.max(1, i - max);
+      int last = Math.min(y.length(), i + max);
+
+      current[0] = Math.min(i, tooFar);
+      if (first > 1) {
+        current[first - 1] = tooFar; // just outside the band
+      }
+
+      int rowMin = current[0];
+      char c = x.charAt(i - 1);
+      for (int j = first; j <= last; j++) {
+        int substitution = previous[j - 1] + costOfSubstitution(c, y.charAt(j - 1));
+        int deletion = j <= i - 1 + max ? previous[j] + 1 : tooFar; // previous[j] is outside the last row's band
+        int insertion = current[j - 1] + 1;
+        current[j] = Math.min(tooFar, Math.min(substitution, Math.min(deletion, insertion)));
+        rowMin = Math.min(rowMin, current[j]);
+      }
+
+      if (rowMin > max) {
+        return tooFar;
+      }
+
+      int[] swap = previous;
+      previous = current;
+      current = swap;
+    }
+
+    return previous[y.length()];
+  }
+
+  /**
+   * Levenshtein distance between the lines (joined by "\n"), but only if it is at most max.
+   * Otherwise returns max + 1.
+   *
+   * Matching lines are lined up first (see EditDistance.diff()), and only the lines in
+   * between are compared. That is one way to edit x into y, so it is never less than
+   * the distance, but it can be more (matching lines are never split). It's only used
+   * to narrow the band for the exact distance between the whole outputs, so a few
+   * wrong lines in a long output are still quick.
+   */
+  public static int calculateLevenshteinDistance(List<String> x, List<String> y, int max) {
+    int limit = max;
+    if (!x.isEmpty() && !y.isEmpty()) { // otherwise there is no "\n" to line up
+      int bound = 0;
+      for (int[] hunk : EditDistance.diff(x, y)) {
+        bound += calculateLevenshteinDistance(joinLines(x, hunk[0], hunk[1]), joinLines(y, hunk[2], hunk[3]),
+            max - bound);
+        if (bound > max) {
+          break;
         }
       }
+      // the distance is at most the bound, so it is still exact with the bound as the limit
+      limit = Math.min(bound, max);
     }
+    return calculateLevenshteinDistance(String.join("\n", x), String.join("\n", y), limit);
+  }
 
-    return dp[x.length()][y.length()];
+  // Every line ends with "\n", so the hunks' edits together edit the joined lines
+  private static String joinLines(List<String> lines, int start, int end) {
+    StringBuilder joined = new StringBuilder();
+    for (int i = start; i < end; i++) {
+      joined.append(lines.get(i)).append('\n');
+    }
+    return joined.toString();
   }
 
-  protected static int costOfSubstitution(char a, char b) {
-    return a == b ? 0 : 1;
+  /** The largest Levenshtein distance that still meets the similarity threshold (see afterExecute()) */
+  public static int maxDistanceForSimilarity(int threshold, int answerLength) {
+    int distance = answerLength * Math.max(0, 101 - threshold) / 100 + 1; // rounding can add up to half a percent
+    while (distance > 0 && 100 - (int) Math.round(1.0 * distance / answerLength * 100) < threshold) {
+      distance--;
+    }
+    return distance;
   }
 
-  private static int min(int... numbers) {
-    return Arrays.stream(numbers).min().orElse(Integer.MAX_VALUE);
+  protected static int costOfSubstitution(char a, char b) {
+    return a == b ? 0 : 1;
   }
 
   @Override
@@ -4,25 +4,26 @@ import java.util.*;
 
 public class UILStyleGrader extends UILGrader
 {
-  private String styleResult;
+  // Style results by student folder (beforeCompile can run for the next students before printResult)
+  private Map<File, String> styleResults = new HashMap<>();
   private File styleLog;
 
   public void printResultHeader()
   {
-    System.out.println("Student, Style, Test Result");
+    System.out.println("Student, Style, " + getResultColumns());
   }
 
   public void printResult(File dir)
   {
-    System.out.printf("%s, %s, %s%n", dir.getName().replaceAll("_" , " "), styleResult, testResult);
+    System.out.printf("%s, %s, %s%n", dir.getName().replaceAll("_" , " "), styleResults.remove(dir), testResult);
   }
 
   public void beforeCompile(JavaRunner jr, File dir)
   {
     super.beforeCompile(jr, dir);
 
-    //Run Style checker & set styleResult instance variable
-    styleResult = "?";
+    //Run Style checker & save this student's styleResult
+    String styleResult = "?";
     styleLog = new File(jr.pathTo("style.log"));
     try
     {
@@ -79,6 +80,7 @@ public class UILStyleGrader extends UILGrader
     {
       e.printStackTrace();
     }
+    styleResults.put(dir, styleResult);
   }
 
   public static void main(String[] args)
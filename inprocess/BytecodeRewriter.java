@@ -0,0 +1,469 @@
+import java.util.*;
+
+import jdk.internal.org.objectweb.asm.ClassReader;
+import jdk.internal.org.objectweb.asm.ClassWriter;
+import jdk.internal.org.objectweb.asm.Handle;
+import jdk.internal.org.objectweb.asm.MethodVisitor;
+import jdk.internal.org.objectweb.asm.Opcodes;
+import jdk.internal.org.objectweb.asm.Type;
+import jdk.internal.org.objectweb.asm.tree.*;
+
+/**
+ * Rewrites student classes as they are loaded for in-process execution.
+ *
+ * A call to BudgetGate.check() is added at the start of every method, before every
+ * backward branch (loops) and at the start of every catch block, so a program whose
+ * RunBudget has expired stops quickly and can't catch its way out.
+ *
+ * Calls that would affect the whole grader (System.exit, starting processes, writing
+ * files outside the program's folder...) are sent to RunGuard instead (see its lists).
+ * Method references to those calls (ex: System::exit) are pointed at a bridge method
+ * added to the class, which makes the same call so it is sent to RunGuard too, and
+ * calls by reflection and method handle lookups are checked by RunGuard first.
+ *
+ * This uses the copy of ASM inside the JDK, which needs
+ * --add-exports java.base/jdk.internal.org.objectweb.asm=ALL-UNNAMED
+ * --add-exports java.base/jdk.internal.org.objectweb.asm.tree=ALL-UNNAMED
+ * when compiling and running it, so it is built separately from the rest of the
+ * grader, which only uses it through ClassRewriter.
+ *
+ * The added call takes no arguments and leaves the stack and locals as they were,
+ * so the existing stack map frames stay valid and don't need to be recomputed.
+ */
+public class BytecodeRewriter implements ClassRewriter {
+  public static final String GATE = "BudgetGate";
+  private static final String GUARD = "RunGuard";
+
+  // Added to the class for method references to guarded calls
+  private static final String BRIDGE = "jemgrader$guard$";
+
+  /** Add budget checks to the specified class file */
+  public byte[] instrument(byte[] classFile) {
+    ClassNode cls = new ClassNode();
+    new ClassReader(classFile).accept(cls, 0);
+
+    Map<String, MethodNode> bridges = new LinkedHashMap<>();
+    for (MethodNode method : cls.methods) {
+      if (method.instructions.size() > 0) {
+        guardHandles(cls, method, bridges);
+        guard(method);
+        instrument(method);
+      }
+    }
+    for (MethodNode bridge : bridges.values()) {
+      guard(bridge);
+      instrument(bridge);
+      cls.methods.add(bridge);
+    }
+
+    ClassWriter writer = new ClassWriter(0);
+    cls.accept(writer);
+    return writer.toByteArray();
+  }
+
+  /** A subclass that forwards calls to the specified methods to a BiConsumer (see ClassRewriter) */
+  public byte[] forwardingSubclass(String name, String superName, Map<String, String> methods) {
+    ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, superName, null);
+    writer.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, "events", "Ljava/util/function/BiConsumer;", null, null)
+        .visitEnd();
+
+    MethodVisitor init = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "(Ljava/util/function/BiConsumer;)V", null, null);
+    init.visitCode();
+    init.visitVarInsn(Opcodes.ALOAD, 0);
+    init.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+    init.visitVarInsn(Opcodes.ALOAD, 0);
+    init.visitVarInsn(Opcodes.ALOAD, 1);
+    init.visitFieldInsn(Opcodes.PUTFIELD, name, "events", "Ljava/util/function/BiConsumer;");
+    init.visitInsn(Opcodes.RETURN);
+    init.visitMaxs(0, 0);
+    init.visitEnd();
+
+    // each method calls events.accept(method name, argument)
+    for (Map.Entry<String, String> forward : methods.entrySet()) {
+      MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC, forward.getKey(), forward.getValue(), null, null);
+      method.visitCode();
+      method.visitVarInsn(Opcodes.ALOAD, 0);
+      method.visitFieldInsn(Opcodes.GETFIELD, name, "events", "Ljava/util/function/BiConsumer;");
+      method.visitLdcInsn(forward.getKey());
+      method.visitVarInsn(Opcodes.ALOAD, 1);
+      method.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/function/BiConsumer", "accept",
+          "(Ljava/lang/Object;Ljava/lang/Object;)V", true);
+      method.visitInsn(Opcodes.RETURN);
+      method.visitMaxs(0, 0);
+      method.visitEnd();
+    }
+
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  private static void instrument(MethodNode method) {
+    InsnList code = method.instructions;
+
+    // Find where each label is so jumps to earlier labels (loops) can be found
+    Map<LabelNode, Integer> positions = new HashMap<>();
+    int position = 0;
+    for (AbstractInsnNode insn : code) {
+      if (insn instanceof LabelNode) {
+        positions.put((LabelNode) insn, position);
+      }
+      position++;
+    }
+
+    // check before every backward jump
+    position = 0;
+    List<AbstractInsnNode> backwardJumps = new ArrayList<>();
+    for (AbstractInsnNode insn : code) {
+      if (jumpsBackward(insn, position, positions)) {
+        backwardJumps.add(insn);
+      }
+      position++;
+    }
+    for (AbstractInsnNode jump : backwardJumps) {
+      code.insertBefore(jump, check());
+    }
+
+    // check at the start of every catch block. Not in finally blocks (they rethrow anyway),
+    // the blocks that unlock a synchronized block, or any block inside its own try: javac's
+    // unlocking block catches its own exceptions, so a check there would throw forever
+    Set<LabelNode> handlers = new HashSet<>();
+    Set<LabelNode> unchecked = new HashSet<>();
+    for (TryCatchBlockNode tryCatch : method.tryCatchBlocks) {
+      int handler = positions.get(tryCatch.handler);
+      if (null == tryCatch.type
+          || (positions.get(tryCatch.start) <= handler && handler < positions.get(tryCatch.end))) {
+        unchecked.add(tryCatch.handler);
+      }
+      handlers.add(tryCatch.handler);
+    }
+    handlers.removeAll(unchecked);
+    for (LabelNode handler : handlers) {
+      AbstractInsnNode first = handler;
+      while (null != first && first.getOpcode() < 0) {
+        first = first.getNext();
+      }
+      if (null != first && !unlocks(first)) {
+        code.insertBefore(first, check());
+      }
+    }
+
+    // check when the method is called
+    code.insert(check());
+  }
+
+  /** Send dangerous calls to RunGuard */
+  private static void guard(MethodNode method) {
+    int scratch = method.maxLocals; // first local that the method doesn't use
+    for (AbstractInsnNode insn : method.instructions.toArray()) {
+      if (!(insn instanceof MethodInsnNode)) {
+        continue;
+      }
+
+      MethodInsnNode call = (MethodInsnNode) insn;
+      String target = call.owner + "." + call.name;
+      Type[] args = Type.getArgumentTypes(call.desc);
+
+      if (RunGuard.DENIED.contains(target)) {
+        deny(method, call, target);
+      }
+      else if (RunGuard.REPLACED.contains(target) || RunGuard.HALT.equals(target)) {
+        String desc = call.desc;
+        if (Opcodes.INVOKESTATIC != call.getOpcode()) {
+          desc = "(L" + call.owner + ";" + desc.substring(1);
+        }
+        call.setOpcode(Opcodes.INVOKESTATIC);
+        call.owner = GUARD;
+        call.name = RunGuard.HALT.equals(target) ? "exit" : call.name;
+        call.desc = desc;
+        call.itf = false;
+      }
+      else if (opensFile(call.owner, call.name, args)) {
+        checkArguments(method, call, scratch, "checkWrite", false, false, 0);
+      }
+      else if (RunGuard.FILE_CHANGERS.contains(target)) {
+        List<Integer> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+          if (isFile(args[i])) {
+            files.add(i);
+          }
+        }
+        if ("java/nio/file/Files.copy".equals(target) && files.size() > 1) {
+          files = files.subList(files.size() - 1, files.size()); // only the target is changed
+        }
+        boolean receiver = "java/io/File".equals(call.owner) && Opcodes.INVOKESTATIC != call.getOpcode();
+        checkArguments(method, call, scratch, "checkWrite", receiver, false, toArray(files));
+      }
+      else if (RunGuard.FILE_OPENERS.contains(target) && args.length > 1) {
+        checkArguments(method, call, scratch, "checkOpen", false, true, 0, 1);
+      }
+      else if (RunGuard.TEMP_FILES.contains(target)) {
+        int folder = -1;
+        for (int i = 0; i < args.length; i++) {
+          if (isFile(args[i]) && !"java/lang/String".equals(args[i].getInternalName())) {
+            folder = i;
+          }
+        }
+        if (folder >= 0) {
+          checkArguments(method, call, scratch, "checkTempFolder", false, false, folder);
+        }
+        else {
+          method.instructions.insertBefore(call, new InsnNode(Opcodes.ACONST_NULL));
+          method.instructions.insertBefore(call, guardCheck("checkTempFolder"));
+          method.maxStack += 1;
+        }
+      }
+      else if (RunGuard.CLASS_LOOKUPS.contains(target)) {
+        for (int i = 0; i < args.length; i++) {
+          if ("java/lang/String".equals(args[i].getInternalName())) {
+            checkArguments(method, call, scratch, "checkClassName", false, false, i);
+            break;
+          }
+        }
+      }
+      else if ("java/lang/reflect/Method.invoke".equals(target)) {
+        checkArguments(method, call, scratch, "checkInvoke", true, true, 0, 1);
+      }
+      else if ("java/lang/reflect/Constructor.newInstance".equals(target)) {
+        checkArguments(method, call, scratch, "checkInvoke", true, true, 0);
+      }
+      else if (RunGuard.REFLECTION.contains(target)) {
+        // Lookup.findStatic/findVirtual/findSpecial(owner, name...), findConstructor(owner, type)
+        // and unreflect/unreflectSpecial/unreflectConstructor(method...)
+        boolean byName = args.length > 1 && "java/lang/String".equals(args[1].getInternalName());
+        boolean constructor = call.name.equals("findConstructor");
+        checkArguments(method, call, scratch, "checkLookup", false, true, byName || constructor ? new int[] { 0, 1 }
+            : new int[] { 0 });
+      }
+    }
+  }
+
+  /** True if a call is a constructor that opens a file for writing (see RunGuard.FILE_WRITERS) */
+  private static boolean opensFile(String owner, String name, Type[] args) {
+    return "<init>".equals(name) && RunGuard.FILE_WRITERS.contains(owner) && args.length > 0 && isFile(args[0]);
+  }
+
+  /** True if a call would be changed or checked by guard() */
+  private static boolean isGuarded(String owner, String name, String desc) {
+    String target = owner + "." + name;
+    return RunGuard.DENIED.contains(target) || RunGuard.REPLACED.contains(target) || RunGuard.HALT.equals(target)
+        || opensFile(owner, name, Type.getArgumentTypes(desc)) || RunGuard.FILE_CHANGERS.contains(target)
+        || RunGuard.FILE_OPENERS.contains(target) || RunGuard.TEMP_FILES.contains(target)
+        || RunGuard.CLASS_LOOKUPS.contains(target) || RunGuard.REFLECTION.contains(target);
+  }
+
+  /**
+   * Point method handles to guarded calls (ex: the System::exit in a lambda's invokedynamic)
+   * at a bridge method that makes the same call, so guard() can guard it
+   */
+  private static void guardHandles(ClassNode cls, MethodNode method, Map<String, MethodNode> bridges) {
+    for (AbstractInsnNode insn : method.instructions) {
+      if (insn instanceof InvokeDynamicInsnNode) {
+        Object[] bsmArgs = ((InvokeDynamicInsnNode) insn).bsmArgs;
+        for (int i = 0; i < bsmArgs.length; i++) {
+          if (bsmArgs[i] instanceof Handle) {
+            bsmArgs[i] = bridge(cls, (Handle) bsmArgs[i], bridges);
+          }
+        }
+      }
+      else if (insn instanceof LdcInsnNode && ((LdcInsnNode) insn).cst instanceof Handle) {
+        ((LdcInsnNode) insn).cst = bridge(cls, (Handle) ((LdcInsnNode) insn).cst, bridges);
+      }
+    }
+  }
+
+  /** A handle to a static bridge method that does what the specified handle does (or the handle itself if it's safe) */
+  private static Handle bridge(ClassNode cls, Handle handle, Map<String, MethodNode> bridges) {
+    int tag = handle.getTag();
+    boolean constructor = Opcodes.H_NEWINVOKESPECIAL == tag;
+    if ((Opcodes.H_INVOKESTATIC != tag && Opcodes.H_INVOKEVIRTUAL != tag && Opcodes.H_INVOKEINTERFACE != tag
+        && !constructor) || !isGuarded(handle.getOwner(), handle.getName(), handle.getDesc())) {
+      return handle;
+    }
+
+    // the receiver (if there is one) becomes the first argument, and a constructor returns the new object
+    List<Type> params = new ArrayList<>();
+    if (Opcodes.H_INVOKESTATIC != tag && !constructor) {
+      params.add(Type.getObjectType(handle.getOwner()));
+    }
+    params.addAll(Arrays.asList(Type.getArgumentTypes(handle.getDesc())));
+    Type result = constructor ? Type.getObjectType(handle.getOwner()) : Type.getReturnType(handle.getDesc());
+    String desc = Type.getMethodDescriptor(result, params.toArray(new Type[0]));
+
+    String key = tag + " " + handle.getOwner() + "." + handle.getName() + handle.getDesc();
+    MethodNode bridge = bridges.get(key);
+    if (null == bridge) {
+      bridge = new MethodNode(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+          BRIDGE + bridges.size(), desc, null, null);
+      InsnList code = bridge.instructions;
+      if (constructor) {
+        code.add(new TypeInsnNode(Opcodes.NEW, handle.getOwner()));
+        code.add(new InsnNode(Opcodes.DUP));
+      }
+      int local = 0;
+      for (Type param : params) {
+        code.add(new VarInsnNode(param.getOpcode(Opcodes.ILOAD), local));
+        local += param.getSize();
+      }
+      int opcode = constructor ? Opcodes.INVOKESPECIAL : Opcodes.H_INVOKESTATIC == tag ? Opcodes.INVOKESTATIC
+          : Opcodes.H_INVOKEINTERFACE == tag ? Opcodes.INVOKEINTERFACE : Opcodes.INVOKEVIRTUAL;
+      code.add(new MethodInsnNode(opcode, handle.getOwner(), handle.getName(), handle.getDesc(), handle.isInterface()));
+      code.add(new InsnNode(result.getOpcode(Opcodes.IRETURN)));
+      bridge.maxLocals = local;
+      bridge.maxStack = local + 2;
+      bridges.put(key, bridge);
+    }
+    return new Handle(Opcodes.H_INVOKESTATIC, cls.name, bridge.name, bridge.desc,
+        0 != (cls.access & Opcodes.ACC_INTERFACE));
+  }
+
+  /** Replace a call with one to RunGuard.deny, leaving the stack as the call would have */
+  private static void deny(MethodNode method, MethodInsnNode call, String target) {
+    InsnList denial = new InsnList();
+    Type[] args = Type.getArgumentTypes(call.desc);
+    for (int i = args.length - 1; i >= 0; i--) {
+      denial.add(new InsnNode(2 == args[i].getSize() ? Opcodes.POP2 : Opcodes.POP));
+    }
+    if (Opcodes.INVOKESTATIC != call.getOpcode()) {
+      denial.add(new InsnNode(Opcodes.POP));
+    }
+
+    denial.add(new LdcInsnNode(target.replace('/', '.')));
+    denial.add(new MethodInsnNode(Opcodes.INVOKESTATIC, GUARD, "deny", "(Ljava/lang/String;)V", false));
+
+    // deny always throws, but the code after the call still expects its result
+    switch (Type.getReturnType(call.desc).getSort()) {
+      case Type.VOID:
+        break;
+      case Type.LONG:
+        denial.add(new InsnNode(Opcodes.LCONST_0));
+        break;
+      case Type.FLOAT:
+        denial.add(new InsnNode(Opcodes.FCONST_0));
+        break;
+      case Type.DOUBLE:
+        denial.add(new InsnNode(Opcodes.DCONST_0));
+        break;
+      case Type.OBJECT:
+      case Type.ARRAY:
+        denial.add(new InsnNode(Opcodes.ACONST_NULL));
+        break;
+      default:
+        denial.add(new InsnNode(Opcodes.ICONST_0));
+    }
+
+    method.instructions.insertBefore(call, denial);
+    method.instructions.remove(call);
+    method.maxStack += 1;
+  }
+
+  /**
+   * Pass some of a call's arguments (and/or its receiver) to a RunGuard check before the call,
+   * one at a time or all together. The arguments are saved in unused locals so they can be
+   * checked and put back.
+   */
+  private static void checkArguments(MethodNode method, MethodInsnNode call, int scratch, String check,
+      boolean receiver, boolean together, int... indexes) {
+    Type[] args = Type.getArgumentTypes(call.desc);
+    int[] locals = new int[args.length];
+    int next = scratch;
+    for (int i = 0; i < args.length; i++) {
+      locals[i] = next;
+      next += args[i].getSize();
+    }
+
+    InsnList checks = new InsnList();
+    for (int i = args.length - 1; i >= 0; i--) {
+      checks.add(new VarInsnNode(args[i].getOpcode(Opcodes.ISTORE), locals[i]));
+    }
+    if (together) {
+      StringBuilder desc = new StringBuilder("(");
+      if (receiver) {
+        checks.add(new InsnNode(Opcodes.DUP));
+        desc.append(Type.getObjectType(call.owner).getDescriptor());
+      }
+      for (int i : indexes) {
+        checks.add(new VarInsnNode(args[i].getOpcode(Opcodes.ILOAD), locals[i]));
+        desc.append(args[i].getDescriptor());
+      }
+      checks.add(new MethodInsnNode(Opcodes.INVOKESTATIC, GUARD, check, desc.append(")V").toString(), false));
+      method.maxStack += 1 + 2 * indexes.length;
+    }
+    else {
+      if (receiver) {
+        checks.add(new InsnNode(Opcodes.DUP));
+        checks.add(guardCheck(check));
+      }
+      for (int i : indexes) {
+        checks.add(new VarInsnNode(Opcodes.ALOAD, locals[i]));
+        checks.add(guardCheck(check));
+      }
+    }
+    for (int i = 0; i < args.length; i++) {
+      checks.add(new VarInsnNode(args[i].getOpcode(Opcodes.ILOAD), locals[i]));
+    }
+
+    method.instructions.insertBefore(call, checks);
+    method.maxLocals = Math.max(method.maxLocals, next);
+    method.maxStack += 1;
+  }
+
+  private static AbstractInsnNode guardCheck(String check) {
+    String desc = "checkClassName".equals(check) ? "(Ljava/lang/String;)V" : "(Ljava/lang/Object;)V";
+    return new MethodInsnNode(Opcodes.INVOKESTATIC, GUARD, check, desc, false);
+  }
+
+  private static boolean isFile(Type type) {
+    String name = type.getSort() == Type.OBJECT ? type.getInternalName() : "";
+    return "java/lang/String".equals(name) || "java/io/File".equals(name) || "java/nio/file/Path".equals(name);
+  }
+
+  private static int[] toArray(List<Integer> list) {
+    int[] array = new int[list.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = list.get(i);
+    }
+    return array;
+  }
+
+  /** True if the code starting at insn releases a monitor before it jumps, returns or throws */
+  private static boolean unlocks(AbstractInsnNode insn) {
+    for (; null != insn; insn = insn.getNext()) {
+      int opcode = insn.getOpcode();
+      if (Opcodes.MONITOREXIT == opcode) {
+        return true;
+      }
+      if (insn instanceof JumpInsnNode || insn instanceof TableSwitchInsnNode || insn instanceof LookupSwitchInsnNode
+          || Opcodes.ATHROW == opcode || (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN)) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  private static boolean jumpsBackward(AbstractInsnNode insn, int position, Map<LabelNode, Integer> positions) {
+    List<LabelNode> targets = new ArrayList<>();
+    if (insn instanceof JumpInsnNode) {
+      targets.add(((JumpInsnNode) insn).label);
+    }
+    else if (insn instanceof TableSwitchInsnNode) {
+      targets.add(((TableSwitchInsnNode) insn).dflt);
+      targets.addAll(((TableSwitchInsnNode) insn).labels);
+    }
+    else if (insn instanceof LookupSwitchInsnNode) {
+      targets.add(((LookupSwitchInsnNode) insn).dflt);
+      targets.addAll(((LookupSwitchInsnNode) insn).labels);
+    }
+
+    for (LabelNode target : targets) {
+      if (positions.get(target) <= position) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static AbstractInsnNode check() {
+    return new MethodInsnNode(Opcodes.INVOKESTATIC, GATE, "check", "()V", false);
+  }
+}
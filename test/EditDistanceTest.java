@@ -0,0 +1,191 @@
+import java.util.*;
+
+/**
+ * Tests for EditDistance and UILGrader's distance between lines, checked against the
+ * plain dynamic programming table on random strings and lines (with a fixed seed, so a
+ * failure can be repeated).
+ * See Tests in the README for how to build and run it.
+ */
+public class EditDistanceTest {
+  private static final int PAIRS = 20000;
+
+  private static int failures;
+  private static Random random = new Random(1);
+
+  public static void main(String[] args) {
+    myersMatchesTable();
+    diffIsMinimal();
+    lineDistanceMatchesTable();
+
+    System.out.println(0 == failures ? "All tests passed" : failures + " tests failed");
+    System.exit(0 == failures ? 0 : 1);
+  }
+
+  /** myers() is the same as the table for short, long (several blocks) and non-ASCII strings */
+  private static void myersMatchesTable() {
+    String[] alphabets = { "a", "ab", "abcd", "abcdefghijklmnopqrstuvwxyz \n", "a\u00e9\u4e2d\ud83d\ude00" };
+    int mismatches = 0;
+    for (int pair = 0; pair < PAIRS; pair++) {
+      String alphabet = alphabets[pair % alphabets.length];
+      int longest = pair % 10 == 0 ? 300 : 140; // past 64 and 128, so the blocks carry into each other
+      String x = randomString(alphabet, random.nextInt(longest + 1));
+      String y = random.nextBoolean() ? randomString(alphabet, random.nextInt(longest + 1)) : mutate(x, alphabet);
+
+      int expected = table(x, y);
+      int actual = EditDistance.myers(x, y);
+      if (expected != actual) {
+        if (0 == mismatches) {
+          System.out.println("  myers(\"" + x + "\", \"" + y + "\") is " + actual + ", the table says " + expected);
+        }
+        mismatches++;
+      }
+    }
+    check("myers matches the table on " + PAIRS + " random pairs", 0 == mismatches);
+  }
+
+  /** diff() only leaves out matching lines, and leaves out as many as possible */
+  private static void diffIsMinimal() {
+    String[] lines = { "a", "b", "c", "d", "" };
+    int wrong = 0;
+    for (int pair = 0; pair < PAIRS; pair++) {
+      List<String> x = randomLines(lines, random.nextInt(40));
+      List<String> y = randomLines(lines, random.nextInt(40));
+
+      // the lines between the hunks pair up in order and match
+      int unchanged = 0;
+      int nextX = 0;
+      int nextY = 0;
+      boolean matches = true;
+      List<int[]> hunks = new ArrayList<>(EditDistance.diff(x, y));
+      hunks.add(new int[] { x.size(), x.size(), y.size(), y.size() });
+      for (int[] hunk : hunks) {
+        matches &= hunk[0] >= nextX && hunk[2] >= nextY && hunk[0] - nextX == hunk[2] - nextY
+            && x.subList(nextX, hunk[0]).equals(y.subList(nextY, hunk[2]));
+        unchanged += Math.max(0, hunk[0] - nextX);
+        nextX = hunk[1];
+        nextY = hunk[3];
+      }
+
+      if (!matches || unchanged != longestCommonSubsequence(x, y)) {
+        if (0 == wrong) {
+          System.out.println("  diff(" + x + ", " + y + ") left " + unchanged + " lines unchanged, the table says "
+              + longestCommonSubsequence(x, y));
+        }
+        wrong++;
+      }
+    }
+    check("diff leaves the longest common subsequence on " + PAIRS + " random pairs", 0 == wrong);
+  }
+
+  /** The distance between lines is the distance between the joined lines, up to the limit */
+  private static void lineDistanceMatchesTable() {
+    String[] lines = { "a", "ab", "abc", "ba", "", "the quick brown fox jumps over the lazy dog", "the quick brown fox" };
+    int mismatches = 0;
+    for (int pair = 0; pair < PAIRS; pair++) {
+      List<String> x = randomLines(lines, random.nextInt(12));
+      List<String> y = random.nextBoolean() ? randomLines(lines, random.nextInt(12)) : mutate(x, lines);
+      int max = random.nextInt(40);
+
+      int expected = Math.min(max + 1, table(String.join("\n", x), String.join("\n", y)));
+      int actual = UILGrader.calculateLevenshteinDistance(x, y, max);
+      if (expected != actual) {
+        if (0 == mismatches) {
+          System.out.println("  calculateLevenshteinDistance(" + x + ", " + y + ", " + max + ") is " + actual
+              + ", the table says " + expected);
+        }
+        mismatches++;
+      }
+    }
+    check("line distance matches the table on " + PAIRS + " random pairs", 0 == mismatches);
+  }
+
+  /** The whole Levenshtein table, one cell at a time */
+  private static int table(String x, String y) {
+    int[][] d = new int[x.length() + 1][y.length() + 1];
+    for (int i = 0; i <= x.length(); i++) {
+      for (int j = 0; j <= y.length(); j++) {
+        if (0 == i || 0 == j) {
+          d[i][j] = i + j;
+        } else {
+          int substitution = d[i - 1][j - 1] + (x.charAt(i - 1) == y.charAt(j - 1) ? 0 : 1);
+          d[i][j] = Math.min(substitution, Math.min(d[i - 1][j], d[i][j - 1]) + 1);
+        }
+      }
+    }
+    return d[x.length()][y.length()];
+  }
+
+  private static int longestCommonSubsequence(List<String> x, List<String> y) {
+    int[][] lcs = new int[x.size() + 1][y.size() + 1];
+    for (int i = 1; i <= x.size(); i++) {
+      for (int j = 1; j <= y.size(); j++) {
+        lcs[i][j] = x.get(i - 1).equals(y.get(j - 1)) ? lcs[i - 1][j - 1] + 1
+            : Math.max(lcs[i - 1][j], lcs[i][j - 1]);
+      }
+    }
+    return lcs[x.size()][y.size()];
+  }
+
+  /** A string of random code points from the alphabet (which can have surrogate pairs) */
+  private static String randomString(String alphabet, int length) {
+    int[] codePoints = alphabet.codePoints().toArray();
+    StringBuilder s = new StringBuilder();
+    while (s.length() < length) {
+      s.appendCodePoint(codePoints[random.nextInt(codePoints.length)]);
+    }
+    return s.toString();
+  }
+
+  /** A few random edits of s, so the pair is close like a student's output and the answer */
+  private static String mutate(String s, String alphabet) {
+    StringBuilder mutated = new StringBuilder(s);
+    for (int edits = random.nextInt(6); edits > 0; edits--) {
+      int at = random.nextInt(mutated.length() + 1);
+      String c = randomString(alphabet, 1);
+      switch (random.nextInt(3)) {
+        case 0:
+          mutated.insert(at, c);
+          break;
+        case 1:
+          if (at < mutated.length()) {
+            mutated.deleteCharAt(at);
+          }
+          break;
+        default:
+          if (at < mutated.length()) {
+            mutated.setCharAt(at, c.charAt(0));
+          }
+      }
+    }
+    return mutated.toString();
+  }
+
+  /** x with a few lines changed, added or removed */
+  private static List<String> mutate(List<String> x, String[] lines) {
+    List<String> mutated = new ArrayList<>(x);
+    for (int edits = random.nextInt(4); edits > 0; edits--) {
+      int at = random.nextInt(mutated.size() + 1);
+      if (at < mutated.size() && random.nextBoolean()) {
+        mutated.remove(at);
+      } else {
+        mutated.add(at, lines[random.nextInt(lines.length)]);
+      }
+    }
+    return mutated;
+  }
+
+  private static List<String> randomLines(String[] lines, int count) {
+    List<String> chosen = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      chosen.add(lines[random.nextInt(lines.length)]);
+    }
+    return chosen;
+  }
+
+  private static void check(String test, boolean passed) {
+    System.out.println((passed ? "PASS " : "FAIL ") + test);
+    if (!passed) {
+      failures++;
+    }
+  }
+}
@@ -0,0 +1,178 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Tests for the in-process backend (InProcessRunner, RunBudget, RunGuard and StreamMultiplexer).
+ *
+ * Each test compiles a small program into a temp folder and runs it in this JVM the
+ * same way the graders do. See Tests in the README for how to build and run it.
+ */
+public class InProcessRunnerTest {
+  private static int failures;
+  private static List<File> tempDirs = new ArrayList<>();
+
+  public static void main(String[] args) throws Exception {
+    try {
+      parallelStreamOutput();
+      synchronizedLoopStops();
+      daemonThreadsStop();
+      caughtTimeoutStops();
+      exitEndsTheProgram();
+      callsAreGuarded();
+      fileWritesAreGuarded();
+    } finally {
+      for (File dir : tempDirs) {
+        JEMGrader.deleteDir(dir);
+      }
+    }
+
+    System.out.println(0 == failures ? "All tests passed" : failures + " tests failed");
+    System.exit(0 == failures ? 0 : 1);
+  }
+
+  /** Output printed by a parallel stream goes to the program that printed it */
+  private static void parallelStreamOutput() throws Exception {
+    // the common pool's workers are started while this program runs
+    run("Warm", "System.out.println(java.util.stream.IntStream.range(0, 1000000).parallel().map(i -> i % 7).sum());");
+
+    JavaRunner numbers = run("Numbers", "java.util.stream.IntStream.range(0, 100).parallel().forEach(System.out::println);");
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      expected.add(String.valueOf(i));
+    }
+    List<String> lines = new ArrayList<>(Files.readAllLines(numbers.getOutputLog().toPath()));
+    lines.sort(Comparator.comparingInt(Integer::parseInt));
+    check("parallel stream output", expected.equals(lines));
+  }
+
+  /** A program stuck in a loop inside a synchronized block stops when it times out */
+  private static void synchronizedLoopStops() throws Exception {
+    JavaRunner runner = runSource("Locked", "public class Locked {\n  public static void main(String[] args) {\n"
+        + "    Object lock = new Object();\n    synchronized (lock) {\n      while (true) {}\n    }\n  }\n}\n", 500);
+    check("synchronized loop times out", runner.timedOut());
+    check("synchronized loop stops", stopped());
+  }
+
+  /** Daemon threads stop when the program ends, like they do when the java command exits */
+  private static void daemonThreadsStop() throws Exception {
+    JavaRunner runner = run("Daemons", "Thread spinner = new Thread(() -> { while (true) {} });\n"
+        + "    Thread sleeper = new Thread(() -> {\n      while (true) {\n"
+        + "        try { Thread.sleep(10); } catch (InterruptedException e) {}\n      }\n    });\n"
+        + "    spinner.setDaemon(true);\n    sleeper.setDaemon(true);\n    spinner.start();\n    sleeper.start();\n"
+        + "    System.out.println(\"done\");");
+    check("daemon threads don't hold up the program", !runner.timedOut() && "done".equals(read(runner.getOutputLog()).trim()));
+    check("daemon threads stop", stopped());
+  }
+
+  /** A program can't keep running by catching the error that stops it */
+  private static void caughtTimeoutStops() throws Exception {
+    JavaRunner runner = run("Catcher", "while (true) {\n      try {\n        while (true) {}\n      } catch (Throwable t) {}\n    }", 500);
+    check("catching the timeout times out", runner.timedOut());
+    check("catching the timeout stops", stopped());
+  }
+
+  /** Exiting through a method reference or reflection ends the program, not the grader */
+  private static void exitEndsTheProgram() throws Exception {
+    JavaRunner reference = run("ExitReference",
+        "java.util.function.IntConsumer exit = System::exit;\n    exit.accept(3);\n    System.out.println(\"running\");");
+    check("System::exit ends the program", read(reference.getOutputLog()).isEmpty());
+
+    JavaRunner reflection = run("ExitReflection",
+        "System.class.getMethod(\"exit\", int.class).invoke(null, 4);\n    System.out.println(\"running\");");
+    check("System.exit by reflection ends the program", read(reflection.getOutputLog()).isEmpty());
+  }
+
+  /** Denied calls are denied through method references, reflection and method handles too */
+  private static void callsAreGuarded() throws Exception {
+    check("ProcessBuilder::start is denied", denied(run("StartReference",
+        "java.util.concurrent.Callable<Process> start = new ProcessBuilder(\"true\")::start;\n    start.call();")));
+    check("Runtime.exec by reflection is denied", denied(run("ExecReflection",
+        "Runtime.class.getMethod(\"exec\", String.class).invoke(Runtime.getRuntime(), \"true\");")));
+    check("looking up System.exit is denied", denied(run("ExitLookup",
+        "java.lang.invoke.MethodHandles.lookup().findStatic(System.class, \"exit\",\n"
+            + "        java.lang.invoke.MethodType.methodType(void.class, int.class)).invoke(5);")));
+    check("System.setOut by reflection is denied", denied(run("SetOutReflection",
+        "System.class.getMethod(\"setOut\", java.io.PrintStream.class).invoke(null, System.err);")));
+  }
+
+  /** Files outside the program's folder can't be written, but can still be read */
+  private static void fileWritesAreGuarded() throws Exception {
+    File outside = new File(System.getProperty("java.io.tmpdir"), "jemgrader-test-" + System.nanoTime());
+    String path = "java.nio.file.Paths.get(\"" + outside.getAbsolutePath().replace("\\", "\\\\") + "\")";
+    String options = "java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.WRITE";
+
+    check("Files.newByteChannel for writing is denied", denied(run("ByteChannel",
+        "java.nio.file.Files.newByteChannel(" + path + ", " + options + ").close();")) && !outside.exists());
+    check("FileChannel.open for writing is denied", denied(run("FileChannel",
+        "java.nio.channels.FileChannel.open(" + path + ", " + options + ").close();")) && !outside.exists());
+    check("Formatter(File) is denied", denied(run("FormatterFile",
+        "new java.util.Formatter(" + path + ".toFile()).close();")) && !outside.exists());
+    check("Files.createTempFile is denied", denied(run("TempFile",
+        "java.nio.file.Files.createTempFile(\"jemgrader-test\", \".tmp\");")));
+
+    JavaRunner reader = run("ByteChannelRead", "java.nio.file.Files.newByteChannel(java.nio.file.Paths.get("
+        + "System.getProperty(\"java.home\"), \"release\")).close();\n    System.out.println(\"read\");");
+    check("Files.newByteChannel for reading is allowed", "read".equals(read(reader.getOutputLog()).trim()));
+    outside.delete();
+  }
+
+  /** True if the program was stopped by a SecurityException */
+  private static boolean denied(JavaRunner runner) throws IOException {
+    return read(runner.getErrorLog()).contains("java.lang.SecurityException");
+  }
+
+  private static String read(File log) throws IOException {
+    return log.exists() ? new String(Files.readAllBytes(log.toPath())) : "";
+  }
+
+  /** True if every program's threads stop within a second */
+  private static boolean stopped() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 1000;
+    while (System.currentTimeMillis() < deadline) {
+      boolean running = false;
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+        ThreadGroup group = thread.getThreadGroup();
+        if (null != group && "student".equals(group.getName()) && !StudentClassLoader.isShared(thread)) {
+          running = true;
+        }
+      }
+      if (!running) {
+        return true;
+      }
+      Thread.sleep(10);
+    }
+    return false;
+  }
+
+  /** Compile and run a class named name whose main method is body */
+  private static JavaRunner run(String name, String body) throws Exception {
+    return run(name, body, 5000);
+  }
+
+  private static JavaRunner run(String name, String body, int timeout) throws Exception {
+    return runSource(name, "public class " + name + " {\n  public static void main(String[] args) throws Throwable {\n    "
+        + body + "\n  }\n}\n", timeout);
+  }
+
+  /** Compile and run the source of a class named name in its own folder */
+  private static JavaRunner runSource(String name, String source, int timeout) throws Exception {
+    File dir = Files.createTempDirectory("jemgrader-test").toFile();
+    tempDirs.add(dir);
+    Files.write(new File(dir, name + ".java").toPath(), source.getBytes());
+
+    InProcessRunner runner = new InProcessRunner(dir, name, timeout, FrameworkClassLoader.get(new ArrayList<>()));
+    if (!runner.compile()) {
+      throw new IllegalStateException(name + " didn't compile: " + new String(Files.readAllBytes(runner.getCompileLog().toPath())));
+    }
+    runner.execute(true);
+    return runner;
+  }
+
+  private static void check(String test, boolean passed) {
+    System.out.println((passed ? "PASS " : "FAIL ") + test);
+    if (!passed) {
+      failures++;
+    }
+  }
+}